@@ -0,0 +1,19 @@
+#!/bin/sh
+# Builds and runs the JMH benchmarks in bench/src against the game in src.
+# The JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3) are expected in
+# lib/jmh, or in the folder given by JMH_LIB. Any arguments are passed on to JMH, so for example
+#   ./bench.sh TickBenchmark.fullTick -p population=seekers
+# runs just the full tick benchmark on maps full of seekers.
+JMH_LIB=${JMH_LIB:-lib/jmh}
+mkdir -p tmp build/classes build/bench
+# Compile the game.
+find src -name *.java > tmp/sourcefiles
+javac -d build/classes -sourcepath src @tmp/sourcefiles
+# Compile the benchmarks, letting JMH generate its harness code.
+find bench/src -name *.java > tmp/benchfiles
+javac -d build/bench -cp "build/classes:$JMH_LIB/*" @tmp/benchfiles
+# Clean up temporary files.
+rm tmp/sourcefiles tmp/benchfiles
+# Run the benchmarks headless, reading the rules from the game folder.
+java -Djava.awt.headless=true -Dsoapquest.rules=. \
+		-cp "build/classes:build/bench:$JMH_LIB/*" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,215 @@
+package soapquest.bench;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * A headless game set up for benchmarking. The game lives in the default package, which can't be
+ * imported from here (and JMH won't generate benchmarks in the default package), so it's driven
+ * through method handles instead.
+ * The map is generated from a population and a density, and written out as the map.csv of a
+ * temporary game folder together with the rule files, so the game loads it exactly like a real
+ * map.
+*/
+public class GameHandle {
+	// Populations
+	/** Rabbits, which wander around. */
+	public static final String WANDERERS = "wanderers";
+	/** Angry treants, which seek out the piles of wood placed alongside them. */
+	public static final String SEEKERS = "seekers";
+	/** Fires, which light up their surroundings. */
+	public static final String LIGHTS = "lights";
+	/** All of the above. */
+	public static final String MIXED = "mixed";
+
+	/** The rules folder used if the soapquest.rules system property isn't set. */
+	public static final String DEFAULT_RULES_FOLDER = ".";
+	/** The rule files copied into the game folder. */
+	public static final String[] RULE_FILES = { "items.csv", "transformations.csv",
+			"behaviours.csv" };
+
+	static final Class<?> GAME_CLASS;
+	static final Constructor<?> CONSTRUCTOR;
+	static final MethodHandle MAP_TICK;
+	static final MethodHandle DO_LIGHT_CALCULATIONS;
+	static final MethodHandle FIND_USE;
+	static final MethodHandle FIND_INTERACTION;
+	static final MethodHandle SEEKS;
+	static final Field NAME_TO_TYPE;
+	static final Method SET_SEED;
+	static final Field TICK_THREADS;
+	static final Field AUTOSAVE_TURNS;
+	static final int DEFAULT_MAP_SIZE;
+
+	static {
+		try {
+			GAME_CLASS = Class.forName("Minigame");
+			CONSTRUCTOR = GAME_CLASS.getDeclaredConstructor(File.class);
+			CONSTRUCTOR.setAccessible(true);
+			MAP_TICK = handle("mapTick", void.class);
+			DO_LIGHT_CALCULATIONS = handle("doLightCalculations", void.class);
+			FIND_USE = handle("findUse", int.class, int.class, int.class);
+			FIND_INTERACTION = handle("findInteraction", int.class, int.class, int.class);
+			SEEKS = handle("seeks", boolean.class, int.class, int.class);
+			SET_SEED = GAME_CLASS.getDeclaredMethod("setSeed", long.class);
+			SET_SEED.setAccessible(true);
+			NAME_TO_TYPE = GAME_CLASS.getDeclaredField("nameToType");
+			NAME_TO_TYPE.setAccessible(true);
+			TICK_THREADS = GAME_CLASS.getDeclaredField("tickThreads");
+			TICK_THREADS.setAccessible(true);
+			AUTOSAVE_TURNS = GAME_CLASS.getDeclaredField("autosaveTurns");
+			AUTOSAVE_TURNS.setAccessible(true);
+			DEFAULT_MAP_SIZE = GAME_CLASS.getField("DEFAULT_MAP_SIZE").getInt(null);
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** @return A handle on the given game method, typed to take the game as an Object. */
+	static MethodHandle handle(String name, Class<?> returnType, Class<?>... parameterTypes)
+			throws Exception
+	{
+		Method m = GAME_CLASS.getDeclaredMethod(name, parameterTypes);
+		m.setAccessible(true);
+		Class<?>[] withReceiver = new Class<?>[parameterTypes.length + 1];
+		withReceiver[0] = Object.class;
+		System.arraycopy(parameterTypes, 0, withReceiver, 1, parameterTypes.length);
+		return MethodHandles.lookup().unreflect(m).asType(
+				MethodType.methodType(returnType, withReceiver));
+	}
+
+	/** The game instance. */
+	final Object game;
+	/** Mapping of item names to their type numbers. */
+	final HashMap<String, Integer> nameToType;
+
+	@SuppressWarnings("unchecked")
+	GameHandle(Object game) throws Exception {
+		this.game = game;
+		nameToType = (HashMap<String, Integer>) NAME_TO_TYPE.get(game);
+	}
+
+	/**
+	 * Creates a game whose map has the given percentage of tiles filled with the population.
+	 * The same seed always produces the same map, and the same game.
+	*/
+	public static GameHandle create(String population, int percent, long seed) throws Exception {
+		return create(population, percent, DEFAULT_MAP_SIZE, seed);
+	}
+
+	/**
+	 * Creates a game whose map is size tiles on a side and has the given percentage of tiles
+	 * filled with the population.
+	*/
+	public static GameHandle create(String population, int percent, int size, long seed)
+			throws Exception
+	{
+		File folder = Files.createTempDirectory("soapquest-bench").toFile();
+		folder.deleteOnExit();
+		File rules = new File(System.getProperty("soapquest.rules", DEFAULT_RULES_FOLDER));
+		for (String name : RULE_FILES) {
+			File f = new File(folder, name);
+			Files.copy(new File(rules, name).toPath(), f.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			f.deleteOnExit();
+		}
+		File mapFile = new File(folder, "map.csv");
+		writeMap(mapFile, population, percent, size, seed);
+		mapFile.deleteOnExit();
+		GameHandle handle = new GameHandle(CONSTRUCTOR.newInstance(folder));
+		handle.setSeed(seed);
+		// Saving in the background would only get in the way of the measurements.
+		AUTOSAVE_TURNS.setInt(handle.game, 0);
+		return handle;
+	}
+
+	/** Writes out a map in the format of map.csv. */
+	static void writeMap(File f, String population, int percent, int size, long seed)
+			throws Exception
+	{
+		String[] types;
+		if (population.equals(WANDERERS)) {
+			types = new String[] { "rabbit" };
+		} else if (population.equals(SEEKERS)) {
+			types = new String[] { "angry treant", "pile of wood" };
+		} else if (population.equals(LIGHTS)) {
+			types = new String[] { "fire" };
+		} else if (population.equals(MIXED)) {
+			types = new String[] { "rabbit", "angry treant", "pile of wood", "fire" };
+		} else {
+			throw new IllegalArgumentException("Unknown population " + population + ".");
+		}
+
+		Random r = new Random(seed);
+		int centre = size / 2;
+		PrintWriter w = new PrintWriter(f);
+		w.println(0 + ", " + size + ", " + size);
+		w.println(centre + ", " + centre + ", nothing");
+		w.println(centre + ", " + centre + ", 1, person");
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				// Leave the player some room.
+				if (Math.abs(x - centre) < 2 && Math.abs(y - centre) < 2) { continue; }
+				if (r.nextInt(100) < percent) {
+					w.println(x + ", " + y + ", 1, " + types[r.nextInt(types.length)]);
+				}
+			}
+		}
+		w.close();
+	}
+
+	/** @return The type number of the item with the given name. */
+	public int type(String name) {
+		return nameToType.get(name);
+	}
+
+	/** @return The type numbers of all item types, including the base types. */
+	public int[] allTypes() {
+		int[] types = new int[nameToType.size()];
+		int i = 0;
+		for (int type : nameToType.values()) {
+			types[i++] = type;
+		}
+		return types;
+	}
+
+	/** Seeds the game's random numbers. */
+	public void setSeed(long seed) throws Exception {
+		SET_SEED.invoke(game, seed);
+	}
+
+	/** Sets how many threads the map tick runs on. */
+	public void setTickThreads(int threads) throws Exception {
+		TICK_THREADS.setInt(game, threads);
+	}
+
+	public void mapTick() throws Throwable {
+		MAP_TICK.invokeExact(game);
+	}
+
+	public void doLightCalculations() throws Throwable {
+		DO_LIGHT_CALCULATIONS.invokeExact(game);
+	}
+
+	public int findUse(int carried, int target) throws Throwable {
+		return (int) FIND_USE.invokeExact(game, carried, target);
+	}
+
+	public int findInteraction(int source, int target) throws Throwable {
+		return (int) FIND_INTERACTION.invokeExact(game, source, target);
+	}
+
+	public boolean seeks(int seeker, int candidate) throws Throwable {
+		return (boolean) SEEKS.invokeExact(game, seeker, candidate);
+	}
+}
@@ -0,0 +1,66 @@
+package soapquest.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures looking up the use, interaction and seek rules for every pair of item types. Most
+ * pairs have no rule, so this is mostly the cost of a miss, which used to mean walking the whole
+ * supertype chain of both types.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RuleLookupBenchmark {
+	GameHandle game;
+	int[] types;
+
+	@Setup
+	public void setUp() throws Exception {
+		game = GameHandle.create(GameHandle.MIXED, 0, 1024);
+		types = game.allTypes();
+	}
+
+	/** Looks up what happens when walking into each type carrying each type. */
+	@Benchmark
+	public void useResolution(Blackhole bh) throws Throwable {
+		for (int carried : types) {
+			for (int target : types) {
+				bh.consume(game.findUse(carried, target));
+			}
+		}
+	}
+
+	/** Looks up how each type interacts with each neighbouring type. */
+	@Benchmark
+	public void interactionResolution(Blackhole bh) throws Throwable {
+		for (int source : types) {
+			for (int target : types) {
+				bh.consume(game.findInteraction(source, target));
+			}
+		}
+	}
+
+	/** Looks up whether each type seeks out each type. */
+	@Benchmark
+	public void seekResolution(Blackhole bh) throws Throwable {
+		for (int seeker : types) {
+			for (int candidate : types) {
+				bh.consume(game.seeks(seeker, candidate));
+			}
+		}
+	}
+}
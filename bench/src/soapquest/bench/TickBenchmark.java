@@ -0,0 +1,67 @@
+package soapquest.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a whole map tick, and the light calculations on their own, on generated maps. The map
+ * is regenerated from the same seed before each iteration, since things move, multiply and burn
+ * out as the ticks go by.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TickBenchmark {
+	/** What the map is populated with. */
+	@Param({ GameHandle.WANDERERS, GameHandle.SEEKERS, GameHandle.LIGHTS, GameHandle.MIXED })
+	public String population;
+
+	/** What percentage of tiles are filled with the population. */
+	@Param({ "1", "5", "20" })
+	public int percent;
+
+	/** The number of tiles along each side of the map. */
+	@Param({ "100", "1000" })
+	public int size;
+
+	/** How many threads the map tick runs on. */
+	@Param({ "1", "4" })
+	public int threads;
+
+	GameHandle game;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		game = GameHandle.create(population, percent, size, 1024);
+		game.setTickThreads(threads);
+	}
+
+	/** A full map tick, which includes the light calculations. */
+	@Benchmark
+	public void fullTick() throws Throwable {
+		game.mapTick();
+	}
+
+	/**
+	 * Just the light calculations. Light from the map is kept up to date as items change, so this
+	 * is only the part that's left for each tick.
+	*/
+	@Benchmark
+	public void lighting() throws Throwable {
+		game.doLightCalculations();
+	}
+}
@@ -0,0 +1,355 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A square piece of the world, SIZE tiles on a side, holding the types and ages of the tiles on
+ * each layer. Tiles within a chunk are indexed as y * SIZE + x, relative to the chunk's corner.
+ * Ages are kept as the turn each tile's item was born in, so items get older without anything
+ * being written, and a tile's type and birth turn are packed into one long by pack(), so they
+ * sit next to each other and a layer of a chunk is a single array. Saves hold ages, as of the
+ * turn the save is from.
+*/
+public class Chunk {
+	/** log2 of the number of tiles along the side of a chunk. */
+	public static final int SHIFT = 6;
+	/** The number of tiles along the side of a chunk. */
+	public static final int SIZE = 1 << SHIFT;
+	/** Mask that gives a coordinate's position within its chunk. */
+	public static final int MASK = SIZE - 1;
+	/** The number of tiles in a chunk. */
+	public static final int AREA = SIZE * SIZE;
+
+	/** The chunk's position in the grid of chunks. */
+	public final int cx, cy;
+	/** The type and birth turn of each tile of each layer, as packed by pack(). */
+	protected final long[][] tiles;
+	/**
+	 * Whether each layer's tiles are shared with a copy made by copy(), so they have to
+	 * be copied before they change.
+	*/
+	protected final boolean[] shared = new boolean[Minigame.MAP_LAYERS];
+	/** The turn in which each tile was last visited by the map tick. */
+	protected final int[][] tickedOn;
+	/** The tiles of each layer whose items can do something by themselves. */
+	protected final TileSet[] active = new TileSet[Minigame.MAP_LAYERS];
+	/** The tiles of each layer holding each indexed type, or null where there are none. */
+	protected final TileSet[][] typeTiles = new TileSet[Minigame.MAP_LAYERS][];
+	/** The tiles of each layer whose items give off light. */
+	protected final TileSet[] lights = new TileSet[Minigame.MAP_LAYERS];
+	/**
+	 * The light each tile's item sheds on the map as far as the light sums go, which lags behind
+	 * the tile's type until World.updateLights() catches up.
+	*/
+	protected final int[][] lightOf;
+	/** The tiles whose light may have changed since World.updateLights() last ran. */
+	protected final TileSet[] lightChanges = new TileSet[Minigame.MAP_LAYERS];
+	/** The tiles whose type or age changed since the game was last saved. */
+	protected final TileSet[] unsaved = new TileSet[Minigame.MAP_LAYERS];
+	/**
+	 * The tiles with timed items whose type or age changed since World.updateTimers() last ran,
+	 * so they may be due at another time.
+	*/
+	protected final TileSet[] timerChanges = new TileSet[Minigame.MAP_LAYERS];
+	/**
+	 * The tiles whose type changed since World.clearViewChanges() last ran, so a Server knows which
+	 * tiles to tell its players about.
+	*/
+	protected final TileSet[] viewChanges = new TileSet[Minigame.MAP_LAYERS];
+	/** The light falling on each tile from light sources, in units of 1 / World.LIGHT_SCALE. */
+	protected final int[] light;
+	/** Whether the light on any tile changed since World.clearViewChanges() last ran. */
+	protected boolean lightChanged;
+	/** The turn in which a tile in this chunk last changed type. */
+	protected int lastChanged;
+	/** The hash of the tiles as by hash(), or 0 if it has to be worked out again. */
+	protected long hash;
+
+	/** Creates a chunk with each layer filled with the given default type. */
+	public Chunk(int cx, int cy, int[] defaultTypes) {
+		this.cx = cx;
+		this.cy = cy;
+		tiles = new long[Minigame.MAP_LAYERS][AREA];
+		tickedOn = new int[Minigame.MAP_LAYERS][AREA];
+		lightOf = new int[Minigame.MAP_LAYERS][AREA];
+		light = new int[AREA];
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			Arrays.fill(tiles[z], pack(defaultTypes[z], 0));
+			active[z] = new TileSet(AREA);
+			lights[z] = new TileSet(AREA);
+			lightChanges[z] = new TileSet(AREA);
+			unsaved[z] = new TileSet(AREA);
+			timerChanges[z] = new TileSet(AREA);
+			viewChanges[z] = new TileSet(AREA);
+		}
+	}
+
+	/**
+	 * Creates a copy of the given chunk's types, ages and unsaved tiles, which shares them with
+	 * the chunk until it changes them. The copy has nothing else in it, and is only for reading.
+	*/
+	protected Chunk(Chunk c) {
+		cx = c.cx;
+		cy = c.cy;
+		tiles = c.tiles.clone();
+		tickedOn = null;
+		lightOf = null;
+		light = null;
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			unsaved[z] = c.unsaved[z];
+		}
+	}
+
+	/**
+	 * @return A copy of the chunk's types, ages and unsaved tiles that stays as it is while the
+	 * chunk changes. Until the chunk changes, they're shared rather than copied.
+	*/
+	public Chunk copy() {
+		Arrays.fill(shared, true);
+		return new Chunk(this);
+	}
+
+	/** Stops sharing the given layer's tiles with copies, by copying them. */
+	public void unshare(int z) {
+		tiles[z] = tiles[z].clone();
+		shared[z] = false;
+	}
+
+	/**
+	 * @return The given type and birth turn packed into one long, with the birth turn in the high
+	 * half.
+	*/
+	public static long pack(int type, int born) {
+		return (long) born << 32 | type & 0xFFFFFFFFL;
+	}
+
+	/** @return The type of a tile packed by pack(). */
+	public static int typeOf(long tile) {
+		return (int) tile;
+	}
+
+	/** @return The birth turn of a tile packed by pack(). */
+	public static int bornOf(long tile) {
+		return (int) (tile >> 32);
+	}
+
+	/** @return The type on the given tile of the given layer. */
+	public int type(int z, int tile) {
+		return (int) tiles[z][tile];
+	}
+
+	/** @return The turn the item on the given tile of the given layer was born in. */
+	public int born(int z, int tile) {
+		return (int) (tiles[z][tile] >> 32);
+	}
+
+	/** Sets the type on the given tile, leaving its birth turn. Layers mustn't be shared. */
+	public void setType(int z, int tile, int type) {
+		tiles[z][tile] = tiles[z][tile] & 0xFFFFFFFF00000000L | type & 0xFFFFFFFFL;
+		hash = 0;
+	}
+
+	/** Sets the birth turn of the given tile, leaving its type. Layers mustn't be shared. */
+	public void setBorn(int z, int tile, int born) {
+		tiles[z][tile] = (long) born << 32 | tiles[z][tile] & 0xFFFFFFFFL;
+		hash = 0;
+	}
+
+	/**
+	 * @return A hash of the types and birth turns of the tiles, which is only worked out again
+	 * once they've changed.
+	*/
+	public long hash() {
+		if (hash == 0) {
+			long h = 17;
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				for (int i = 0; i < AREA; i++) {
+					h = h * 31 + tiles[z][i];
+				}
+			}
+			hash = SimRandom.mix(h);
+		}
+		return hash;
+	}
+
+	/** @return Whether any tile in this chunk can do something by itself. */
+	public boolean isActive() {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			if (active[z].size() != 0) { return true; }
+		}
+		return false;
+	}
+
+	/** @return The number of tiles in this chunk that changed since the game was last saved. */
+	public int unsavedTiles() {
+		int tiles = 0;
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			tiles += unsaved[z].size();
+		}
+		return tiles;
+	}
+
+	/** Works out which tiles are active from scratch. */
+	public void findActiveTiles(boolean[] activeTypes) {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			active[z] = new TileSet(AREA);
+			for (int i = 0; i < AREA; i++) {
+				if (activeTypes[type(z, i)]) {
+					active[z].add(i);
+				}
+			}
+		}
+	}
+
+	/** Marks all the tiles with timed items as needing their timers set. */
+	public void findTimedTiles(boolean[] timedTypes) {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			timerChanges[z] = new TileSet(AREA);
+			for (int i = 0; i < AREA; i++) {
+				if (timedTypes[type(z, i)]) {
+					timerChanges[z].add(i);
+				}
+			}
+		}
+	}
+
+	/** Works out which tiles give off light, and how much, from scratch. */
+	public void findLights(int[] typeLight) {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			lights[z] = new TileSet(AREA);
+			lightChanges[z] = new TileSet(AREA);
+			for (int i = 0; i < AREA; i++) {
+				lightOf[z][i] = typeLight[type(z, i)];
+				if (lightOf[z][i] != 0) {
+					lights[z].add(i);
+				}
+			}
+		}
+	}
+
+	/** Works out where the tiles of the given types are from scratch. */
+	public void findTypeTiles(boolean[] indexedTypes) {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			typeTiles[z] = new TileSet[indexedTypes.length];
+			for (int i = 0; i < AREA; i++) {
+				int type = type(z, i);
+				if (indexedTypes[type]) {
+					addTypeTile(z, type, i);
+				}
+			}
+		}
+	}
+
+	public void addTypeTile(int z, int type, int tile) {
+		if (typeTiles[z][type] == null) {
+			typeTiles[z][type] = new TileSet(AREA);
+		}
+		typeTiles[z][type].add(tile);
+	}
+
+	public void removeTypeTile(int z, int type, int tile) {
+		if (typeTiles[z][type] != null) {
+			typeTiles[z][type].remove(tile);
+		}
+	}
+
+	/** Writes out the types and birth turns of the tiles. */
+	public void write(DataOutputStream out) throws IOException {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			for (int i = 0; i < AREA; i++) {
+				out.writeInt(type(z, i));
+				out.writeInt(born(z, i));
+			}
+		}
+	}
+
+	/**
+	 * Writes out the types and ages of the tiles as runs of tiles that have the same type and age,
+	 * which is what saves use, since most of a chunk is usually the same. The numbers are written
+	 * with writeVarInt(), as they're mostly small.
+	 * @param turn The turn the ages are as of.
+	*/
+	public void writeRuns(DataOutputStream out, int turn) throws IOException {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			long[] layer = tiles[z];
+			int start = 0;
+			for (int i = 1; i <= AREA; i++) {
+				if (i == AREA || layer[i] != layer[start]) {
+					writeVarInt(out, i - start - 1);
+					writeVarInt(out, typeOf(layer[start]));
+					writeVarInt(out, turn - bornOf(layer[start]));
+					start = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads in the types and ages of the tiles, as written by writeRuns().
+	 * @param typeMap The type each type number in the input stands for.
+	 * @param turn The turn the ages are as of.
+	*/
+	public void readRuns(DataInputStream in, int[] typeMap, int turn) throws IOException {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			int i = 0;
+			while (i < AREA) {
+				int end = i + readVarInt(in) + 1;
+				int type = readVarInt(in);
+				int age = readVarInt(in);
+				if (end > AREA || type < 0 || type >= typeMap.length) {
+					throw new IOException("Bad run of tiles in chunk " + cx + ", " + cy + ".");
+				}
+				Arrays.fill(tiles[z], i, end, pack(typeMap[type], turn - age));
+				i = end;
+			}
+		}
+		hash = 0;
+	}
+
+	/** Writes out a number in as few bytes as it needs, seven bits at a time. */
+	public static void writeVarInt(DataOutputStream out, int n) throws IOException {
+		while ((n & ~0x7F) != 0) {
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	/** @return A number written by writeVarInt(). */
+	public static int readVarInt(DataInputStream in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return n; }
+		}
+		throw new IOException("Bad number in chunk.");
+	}
+
+	/** @return The chunk at the given position, read in from a file written by write(). */
+	public static Chunk read(File f, int cx, int cy, int[] defaultTypes) throws IOException {
+		Chunk c = new Chunk(cx, cy, defaultTypes);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			c.read(in);
+		} finally {
+			in.close();
+		}
+		return c;
+	}
+
+	/** Reads in the types and birth turns of the tiles, as written by write(). */
+	public void read(DataInputStream in) throws IOException {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			for (int i = 0; i < AREA; i++) {
+				int type = in.readInt();
+				tiles[z][i] = pack(type, in.readInt());
+			}
+		}
+		hash = 0;
+	}
+}
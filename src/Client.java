@@ -0,0 +1,189 @@
+import javax.swing.JFrame;
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A window onto a game shared by a Server. Sends the keys pressed to the server, and puts
+ * together views out of the changes the server sends back, which are drawn as in the game.
+*/
+public class Client extends Canvas implements KeyListener {
+	private static final long serialVersionUID = 1L;
+
+	protected final Socket socket;
+	protected final DataInputStream in;
+	protected final OutputStream out;
+	protected final Renderer renderer = new Renderer();
+	/** The size of the view in tiles, as the server says. */
+	protected final int width, height;
+	/** The names and colours of the types, as the server last sent them. */
+	protected String[] typeNames = new String[0];
+	protected Color[] typeColors = new Color[0];
+	/** The view last put together, which paint() draws. */
+	protected volatile View view;
+
+	/** Connects to the server at the given host and port, and reads the size of the view. */
+	public Client(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = socket.getOutputStream();
+		DataInputStream hello = readMessage();
+		if (hello.readByte() != Server.HELLO) {
+			throw new IOException("Expected a hello from the server.");
+		}
+		width = hello.readInt();
+		height = hello.readInt();
+	}
+
+	/** Connects to the server at the given host and port, and shows the game in a window. */
+	public static void run(String host, int port) {
+		final Client c;
+		try {
+			c = new Client(host, port);
+		} catch (IOException e) {
+			System.err.println("Could not connect to " + host + ":" + port + ".");
+			e.printStackTrace();
+			return;
+		}
+		c.setSize(c.width * Minigame.TILE_SIZE,
+				c.height * Minigame.TILE_SIZE + Minigame.STATUS_BAR_HEIGHT);
+		JFrame window = new JFrame();
+		window.add(c);
+		window.pack();
+		window.setResizable(false);
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		window.addKeyListener(c);
+		c.addKeyListener(c);
+		window.setVisible(true);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				c.receive();
+			}
+		}, "client");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** @return The next message from the server, without its length. */
+	protected DataInputStream readMessage() throws IOException {
+		byte[] message = new byte[in.readInt()];
+		in.readFully(message);
+		return new DataInputStream(new ByteArrayInputStream(message));
+	}
+
+	/** Reads messages from the server until the connection is lost, putting together views. */
+	protected void receive() {
+		try {
+			while (true) {
+				DataInputStream message = readMessage();
+				int kind = message.readByte();
+				if (kind == Server.TYPES) {
+					readTypes(message);
+				} else if (kind == Server.FRAME) {
+					view = readFrame(message, view);
+					repaint();
+				}
+			}
+		} catch (IOException e) {
+			View v = view;
+			if (v != null) {
+				view = new View(v.width, v.height, v.left, v.top, v.types, v.light,
+						"Lost the connection to the server.", Color.RED, v.typeColors, v.typeNames);
+				repaint();
+			}
+		}
+	}
+
+	protected void readTypes(DataInputStream message) throws IOException {
+		int types = message.readInt();
+		String[] names = new String[types];
+		Color[] colors = new Color[types];
+		for (int t = 0; t < types; t++) {
+			names[t] = message.readUTF();
+			boolean coloured = message.readBoolean();
+			int rgb = message.readInt();
+			colors[t] = coloured ? new Color(rgb) : null;
+		}
+		typeNames = names;
+		typeColors = colors;
+	}
+
+	/**
+	 * @return The view the changes in the given message lead to from the given view, which is
+	 * left as it is, so the renderer can still tell what changed.
+	*/
+	protected View readFrame(DataInputStream message, View old) throws IOException {
+		message.readInt(); // The turn.
+		int left = message.readInt();
+		int top = message.readInt();
+		String status = old == null ? "" : old.status;
+		Color statusColor = old == null ? Color.WHITE : old.statusColor;
+		if (message.readBoolean()) {
+			status = message.readUTF();
+			statusColor = new Color(message.readInt());
+		}
+		int[][] types = new int[Minigame.MAP_LAYERS][width * height];
+		double[] light = new double[width * height];
+		// Start from what's still in view, moved along with the view. The server sends the rest.
+		if (old != null && old.typeColors == typeColors) {
+			for (int y = 0; y < height; y++) {
+				int oldY = y + top - old.top;
+				if (oldY < 0 || oldY >= height) { continue; }
+				int x = Math.max(0, old.left - left);
+				int endX = Math.min(width, width + old.left - left);
+				if (x >= endX) { continue; }
+				int oldIndex = oldY * width + x + left - old.left;
+				for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+					System.arraycopy(old.types[z], oldIndex, types[z], y * width + x, endX - x);
+				}
+				System.arraycopy(old.light, oldIndex, light, y * width + x, endX - x);
+			}
+		}
+		int changed = message.readInt();
+		for (int n = 0; n < changed; n++) {
+			int i = Chunk.readVarInt(message);
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				types[z][i] = Chunk.readVarInt(message);
+			}
+			light[i] = message.readUnsignedByte() / (double) (Renderer.LIGHT_LEVELS - 1);
+		}
+		return new View(width, height, left, top, types, light, status, statusColor, typeColors,
+				typeNames);
+	}
+
+	public void paint(Graphics g) {
+		View v = view;
+		if (v != null) {
+			renderer.draw((Graphics2D) g, v);
+		}
+	}
+
+	public void update(Graphics g) {
+		paint(g);
+	}
+
+	/** Sends the key pressed to the server. */
+	public void keyPressed(KeyEvent e) {
+		if (e.getKeyCode() > 255) { return; }
+		try {
+			out.write(e.getKeyCode());
+			out.flush();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	// Needed to implement KeyListener, but not needed.
+	public void keyReleased(KeyEvent e) {}
+	public void keyTyped(KeyEvent e) {}
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The rules of the game with type inheritance already resolved. The rules as loaded only hold
+ * what the CSV files say, so finding out how two types interact means exploring the supertypes
+ * of both. This does that exploration once for every pair of types for which a rule applies,
+ * so looking up a rule while the game runs is a single probe into a table, however deep the
+ * type hierarchy is.
+ * Compiled rules are never changed, so they can be shared between threads.
+*/
+public class CompiledRules {
+	/**
+	 * The shortest interaction frequency an item can have and still be timed rather than active,
+	 * since waking an item up costs more than ticking it a few times.
+	*/
+	public static final int MIN_TIMED_PERIOD = 4;
+
+	/** The number of item types the rules were compiled for. */
+	public final int numberOfTypes;
+	/** The use rules, with the same columns as Minigame.useRules. */
+	public final RuleTable use;
+	/** The interaction rules, with the same columns as Minigame.interactionRules. */
+	public final RuleTable interaction;
+	/** Which item types an item of a given type seeks out, with the columns of soughtTypes. */
+	public final RuleTable seeks;
+	/** Whether an item of this type seeks at all. */
+	public final boolean[] seeker;
+	/** Whether any item seeks out items of this type. */
+	public final boolean[] sought;
+	/** The types an item of this type seeks out, and how far away it notices each of them. */
+	public final int[][] seekTargets, seekDistances;
+	/** The types that seek out items of this type. */
+	public final int[][] seekersOf;
+	/** How far away the furthest-sighted seeker notices items of this type. */
+	public final int[] soughtDistance;
+	/** Whether the world needs to keep track of where items of this type are, to seek. */
+	public final boolean[] indexed;
+	/** Whether an item of this type has an interaction rule with anything. */
+	public final boolean[] interacts;
+	/**
+	 * The types an item of this type has interaction rules with, as bits, type t being bit t & 63
+	 * of word t >> 6, or null if it has none. See canInteract().
+	*/
+	public final long[][] interactionTargets;
+	/**
+	 * Whether an item of this type does something by itself every turn, or nearly, which is to
+	 * wander, seek or interact with no frequency or one below MIN_TIMED_PERIOD. Items of other
+	 * types are left alone by the map tick, unless they're timed.
+	*/
+	public final boolean[] active;
+	/**
+	 * Whether an item of this type only does something at certain ages, which is to change or to
+	 * interact with a frequency. The world wakes these items up for the turns they're due in, as
+	 * worked out by turnsUntilDue(), and the map tick leaves them alone in between.
+	*/
+	public final boolean[] timed;
+	/** The age at which an item of this type changes into something else, or 0 if it doesn't. */
+	protected final int[] changeAge;
+	/** The different frequencies of a timed type's interaction rules, or null. */
+	protected final int[][] periods;
+
+	/** Compiles the given rules, which are left unchanged. */
+	public CompiledRules(int numberOfTypes, int[] supertype, RuleTable useRules,
+			RuleTable interactionRules, RuleTable soughtTypes, boolean[] typeSeeks,
+			boolean[] typeWanders, int[] changeAge)
+	{
+		this.numberOfTypes = numberOfTypes;
+		int[][] ancestors = ancestors(numberOfTypes, supertype);
+		int[][] descendants = descendants(numberOfTypes, ancestors);
+		use = resolve(useRules, ancestors, descendants);
+		interaction = resolve(interactionRules, ancestors, descendants);
+		seeks = resolve(soughtTypes, ancestors, descendants);
+		seeker = new boolean[numberOfTypes];
+		for (int type = 0; type < numberOfTypes; type++) {
+			for (int ancestor : ancestors[type]) {
+				seeker[type] |= typeSeeks[ancestor];
+			}
+		}
+		sought = new boolean[numberOfTypes];
+		seekTargets = new int[numberOfTypes][];
+		seekDistances = new int[numberOfTypes][];
+		seekersOf = new int[numberOfTypes][];
+		soughtDistance = new int[numberOfTypes];
+		indexed = new boolean[numberOfTypes];
+		int[] counts = new int[numberOfTypes];
+		int[] seekerCounts = new int[numberOfTypes];
+		for (int slot = 0; slot < seeks.capacity(); slot++) {
+			if (seeks.used(slot)) {
+				counts[seeks.a(slot)]++;
+				seekerCounts[seeks.b(slot)]++;
+				sought[seeks.b(slot)] = true;
+				soughtDistance[seeks.b(slot)] = Math.max(soughtDistance[seeks.b(slot)],
+						seeks.get(slot, Minigame.SEEK_DISTANCE));
+			}
+		}
+		for (int type = 0; type < numberOfTypes; type++) {
+			seekTargets[type] = new int[counts[type]];
+			seekDistances[type] = new int[counts[type]];
+			seekersOf[type] = new int[seekerCounts[type]];
+			indexed[type] = sought[type] || counts[type] != 0;
+			counts[type] = 0;
+			seekerCounts[type] = 0;
+		}
+		for (int slot = 0; slot < seeks.capacity(); slot++) {
+			if (seeks.used(slot)) {
+				int type = seeks.a(slot);
+				int soughtType = seeks.b(slot);
+				seekTargets[type][counts[type]] = soughtType;
+				seekDistances[type][counts[type]++] = seeks.get(slot, Minigame.SEEK_DISTANCE);
+				seekersOf[soughtType][seekerCounts[soughtType]++] = type;
+			}
+		}
+		interacts = new boolean[numberOfTypes];
+		interactionTargets = new long[numberOfTypes][];
+		for (int slot = 0; slot < interaction.capacity(); slot++) {
+			if (!interaction.used(slot)) { continue; }
+			int type = interaction.a(slot);
+			int target = interaction.b(slot);
+			if (interactionTargets[type] == null) {
+				interactionTargets[type] = new long[(numberOfTypes + 63) >> 6];
+			}
+			interactionTargets[type][target >> 6] |= 1L << target;
+			interacts[type] = true;
+		}
+		this.changeAge = Arrays.copyOf(changeAge, numberOfTypes);
+		active = new boolean[numberOfTypes];
+		for (int type = 0; type < numberOfTypes; type++) {
+			active[type] = typeWanders[type] || seeker[type];
+		}
+		periods = new int[numberOfTypes][];
+		for (int slot = 0; slot < interaction.capacity(); slot++) {
+			if (!interaction.used(slot)) { continue; }
+			int type = interaction.a(slot);
+			int period = interaction.get(slot, Minigame.INTERACTION_FREQUENCY);
+			if (period < MIN_TIMED_PERIOD) {
+				active[type] = true;
+			} else if (periods[type] == null) {
+				periods[type] = new int[] { period };
+			} else if (indexOf(periods[type], period) == -1) {
+				periods[type] = Arrays.copyOf(periods[type], periods[type].length + 1);
+				periods[type][periods[type].length - 1] = period;
+			}
+		}
+		timed = new boolean[numberOfTypes];
+		for (int type = 0; type < numberOfTypes; type++) {
+			timed[type] = !active[type] && (this.changeAge[type] != 0 || periods[type] != null);
+		}
+	}
+
+	/**
+	 * @return How many turns from the one in which an item of the given timed type is the given
+	 * age until it's next due to change or interact, 0 if it's due in that turn, or -1 if it
+	 * never is.
+	*/
+	public int turnsUntilDue(int type, int age) {
+		int wait = -1;
+		if (changeAge[type] != 0) {
+			wait = Math.max(0, changeAge[type] - age);
+		}
+		if (periods[type] != null) {
+			for (int period : periods[type]) {
+				int untilPeriod = (period - age % period) % period;
+				if (wait == -1 || untilPeriod < wait) {
+					wait = untilPeriod;
+				}
+			}
+		}
+		return wait;
+	}
+
+	static int indexOf(int[] array, int value) {
+		for (int i = 0; i < array.length; i++) {
+			if (array[i] == value) { return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Whether there's an interaction rule for the source type on the target type, which is
+	 * quicker to find out than looking up the rule, so the map tick only looks up rules that are
+	 * there.
+	*/
+	public boolean canInteract(int source, int target) {
+		long[] targets = interactionTargets[source];
+		return targets != null && (targets[target >> 6] & 1L << target) != 0;
+	}
+
+	/** @return Each type followed by its supertype, its supertype's supertype, and so on. */
+	static int[][] ancestors(int numberOfTypes, int[] supertype) {
+		int[][] ancestors = new int[numberOfTypes][];
+		for (int type = 0; type < numberOfTypes; type++) {
+			int depth = 0;
+			for (int t = type; t != Minigame.NONE; t = supertype[t]) {
+				depth++;
+			}
+			ancestors[type] = new int[depth];
+			depth = 0;
+			for (int t = type; t != Minigame.NONE; t = supertype[t]) {
+				ancestors[type][depth++] = t;
+			}
+		}
+		return ancestors;
+	}
+
+	/** @return Each type's descendants, including the type itself. */
+	static int[][] descendants(int numberOfTypes, int[][] ancestors) {
+		int[] counts = new int[numberOfTypes];
+		for (int type = 0; type < numberOfTypes; type++) {
+			for (int ancestor : ancestors[type]) {
+				counts[ancestor]++;
+			}
+		}
+		int[][] descendants = new int[numberOfTypes][];
+		for (int type = 0; type < numberOfTypes; type++) {
+			descendants[type] = new int[counts[type]];
+			counts[type] = 0;
+		}
+		for (int type = 0; type < numberOfTypes; type++) {
+			for (int ancestor : ancestors[type]) {
+				descendants[ancestor][counts[ancestor]++] = type;
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Resolves type inheritance in the given rules. The rule that applies to a pair of types is
+	 * found by trying each supertype of the second type with the first type, then each with the
+	 * first type's supertype, and so on.
+	 * @return A table with the rule that applies under every pair of types that has one.
+	*/
+	static RuleTable resolve(RuleTable rules, int[][] ancestors, int[][] descendants) {
+		int numberOfTypes = ancestors.length;
+		int columns = rules.columns;
+		// Group the rules by their first type.
+		ArrayList<ArrayList<Integer>> targetsOf = new ArrayList<ArrayList<Integer>>();
+		for (int type = 0; type < numberOfTypes; type++) {
+			targetsOf.add(null);
+		}
+		for (int slot = 0; slot < rules.capacity(); slot++) {
+			if (!rules.used(slot)) { continue; }
+			if (targetsOf.get(rules.a(slot)) == null) {
+				targetsOf.set(rules.a(slot), new ArrayList<Integer>());
+			}
+			targetsOf.get(rules.a(slot)).add(rules.b(slot));
+		}
+
+		RuleTable resolved = new RuleTable(columns);
+		boolean[] candidate = new boolean[numberOfTypes];
+		for (int a = 0; a < numberOfTypes; a++) {
+			// Only the descendants of the targets of a's rules and its supertypes' rules can
+			// have a rule with a.
+			ArrayList<Integer> candidates = new ArrayList<Integer>();
+			for (int myA : ancestors[a]) {
+				if (targetsOf.get(myA) == null) { continue; }
+				for (int myB : targetsOf.get(myA)) {
+					for (int b : descendants[myB]) {
+						if (!candidate[b]) {
+							candidate[b] = true;
+							candidates.add(b);
+						}
+					}
+				}
+			}
+			for (int b : candidates) {
+				candidate[b] = false;
+				int rule = find(rules, ancestors[a], ancestors[b]);
+				int slot = resolved.put(a, b);
+				for (int column = 0; column < columns; column++) {
+					resolved.set(slot, column, rules.get(rule, column));
+				}
+			}
+		}
+		return resolved;
+	}
+
+	/** @return The slot of the first rule found for the given supertype chains. */
+	static int find(RuleTable rules, int[] aAncestors, int[] bAncestors) {
+		for (int myA : aAncestors) {
+			for (int myB : bAncestors) {
+				int rule = rules.find(myA, myB);
+				if (rule != -1) { return rule; }
+			}
+		}
+		throw new IllegalStateException("Candidate pair has no rule.");
+	}
+}
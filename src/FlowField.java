@@ -0,0 +1,168 @@
+import java.util.Arrays;
+
+/**
+ * The distance from tiles to the nearest item of a sought type, counted in moves through empty
+ * tiles, so seekers can find their way around obstacles by stepping to the neighbour closest to
+ * what they seek. A flow field is shared by all the seekers of the sought type, and is worked out
+ * once per tick, only in the chunks around those seekers and only as far as they can see.
+*/
+public class FlowField {
+	/** The distance of tiles from which no sought item can be reached. */
+	public static final int UNREACHED = Integer.MAX_VALUE;
+	// The directions seekers can move in, straight ones first.
+	public static final int[] DX = { 1, -1, 0, 0, 1, 1, -1, -1 };
+	public static final int[] DY = { 0, 0, 1, -1, 1, -1, 1, -1 };
+
+	/** The layer the field is on. */
+	public final int z;
+	/** The sought type. */
+	public final int type;
+	/** The world the field was last worked out for. */
+	protected World world;
+	/** The turn the field was last worked out in. */
+	protected int turn = -1;
+	/** The distance of each tile of each chunk, by chunk index. */
+	protected int[][] distances = new int[0][];
+	/** The update in which each chunk was last part of the field. */
+	protected int[] updatedIn = new int[0];
+	/** The number of the current update. */
+	protected int update;
+	/** The indices of the chunks that are part of the field. */
+	protected int[] region = new int[16];
+	protected int regionSize;
+	/** The tiles whose neighbours still need to be looked at, as packed by World.pack(). */
+	protected long[] queue = new long[256];
+
+	public FlowField(int z, int type) {
+		this.z = z;
+		this.type = type;
+	}
+
+	/**
+	 * Works out the field for the given turn, unless that has already been done.
+	 * @param seekers The types that seek the sought type.
+	 * @param range How many moves away from a sought item the field reaches.
+	*/
+	public void update(World world, int turn, int[] seekers, int range) {
+		if (this.world == world && this.turn == turn) { return; }
+		this.world = world;
+		this.turn = turn;
+		update++;
+		regionSize = 0;
+		if (updatedIn.length != world.chunksX * world.chunksY) {
+			distances = new int[world.chunksX * world.chunksY][];
+			updatedIn = new int[distances.length];
+		}
+
+		// The field covers the chunks with seekers in them, and the chunks around them within
+		// range.
+		int reach = (range + Chunk.MASK) >> Chunk.SHIFT;
+		TileSet resident = world.residentChunks();
+		for (int i = resident.next(0); i != -1; i = resident.next(i + 1)) {
+			Chunk c = world.chunks[i];
+			if (!hasSeekers(c, seekers)) { continue; }
+			for (int cy = Math.max(0, c.cy - reach);
+				cy <= Math.min(world.chunksY - 1, c.cy + reach); cy++)
+			{
+				for (int cx = Math.max(0, c.cx - reach);
+					cx <= Math.min(world.chunksX - 1, c.cx + reach); cx++)
+				{
+					addChunk(cy * world.chunksX + cx);
+				}
+			}
+		}
+
+		// Then spread out from the sought items, breadth first.
+		int head = 0;
+		int tail = 0;
+		for (int r = 0; r < regionSize; r++) {
+			int i = region[r];
+			Chunk c = world.chunk(i);
+			if (c == null || c.typeTiles[z][type] == null) { continue; }
+			TileSet tiles = c.typeTiles[z][type];
+			for (int tile = tiles.next(0); tile != -1; tile = tiles.next(tile + 1)) {
+				distances[i][tile] = 0;
+				tail = enqueue(tail, World.pack((c.cy << Chunk.SHIFT) + (tile >> Chunk.SHIFT),
+						(c.cx << Chunk.SHIFT) + (tile & Chunk.MASK)));
+			}
+		}
+		while (head < tail) {
+			long location = queue[head++];
+			int y = World.y(location);
+			int x = World.x(location);
+			int distance = distances[world.chunkIndex(y, x)][World.tileIndex(y, x)] + 1;
+			// Seekers stop next to what they seek, so they need to see no further than this.
+			if (distance >= range) { continue; }
+			for (int direction = 0; direction < DX.length; direction++) {
+				int newX = x + DX[direction];
+				int newY = y + DY[direction];
+				if (!world.contains(newY, newX)) { continue; }
+				int index = world.chunkIndex(newY, newX);
+				int tile = World.tileIndex(newY, newX);
+				if (updatedIn[index] != update || distances[index][tile] != UNREACHED) {
+					continue;
+				}
+				if (world.type(z, newY, newX) != Minigame.NOTHING) { continue; }
+				distances[index][tile] = distance;
+				tail = enqueue(tail, World.pack(newY, newX));
+			}
+		}
+	}
+
+	/** @return Whether the chunk holds any items of the given types. */
+	protected boolean hasSeekers(Chunk c, int[] seekers) {
+		for (int seeker : seekers) {
+			if (c.typeTiles[z][seeker] != null && c.typeTiles[z][seeker].size() != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected void addChunk(int index) {
+		if (updatedIn[index] == update) { return; }
+		updatedIn[index] = update;
+		if (regionSize == region.length) {
+			region = Arrays.copyOf(region, region.length * 2);
+		}
+		region[regionSize++] = index;
+		if (distances[index] == null) {
+			distances[index] = new int[Chunk.AREA];
+		}
+		Arrays.fill(distances[index], UNREACHED);
+	}
+
+	/** Adds to the queue, which grows as needed. @return The new tail of the queue. */
+	protected int enqueue(int tail, long location) {
+		if (tail == queue.length) {
+			queue = Arrays.copyOf(queue, queue.length * 2);
+		}
+		queue[tail] = location;
+		return tail + 1;
+	}
+
+	/** @return The distance of the given tile, or UNREACHED. */
+	public int distance(int y, int x) {
+		if (!world.contains(y, x)) { return UNREACHED; }
+		int index = world.chunkIndex(y, x);
+		if (updatedIn[index] != update) { return UNREACHED; }
+		return distances[index][World.tileIndex(y, x)];
+	}
+
+	/**
+	 * @return The direction of the neighbour of the given tile that is closest to a sought item,
+	 * or -1 if none of them has a way to one. Ties go to the first direction in DX/DY.
+	*/
+	public int bestDirection(int y, int x) {
+		int best = -1;
+		int bestDistance = UNREACHED;
+		for (int direction = 0; direction < DX.length; direction++) {
+			int distance = distance(y + DY[direction], x + DX[direction]);
+			if (distance < bestDistance) {
+				best = direction;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,273 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The changes made since the last full save, appended to a journal file each time the game is
+ * saved, so saving costs as much as what changed rather than as much as the whole world.
+ * A journal starts with MAGIC, VERSION, the generation of the save or journal its changes go on
+ * top of and its own generation. Then come batches of changes, one per save, each as its length,
+ * a CRC32 of it and then the batch itself, deflated, so a batch that was only partly written is
+ * noticed and left out. A batch holds the turn, the random seed, the player's state, the names of
+ * the types first used in the batch and then the changed tiles and chunks, ending with END.
+*/
+public class Journal {
+	/** The first four bytes of a journal, "SQJL". */
+	public static final int MAGIC = 0x53514A4C;
+	/** The version of the journal format. */
+	public static final int VERSION = 1;
+	// The kinds of records in a batch.
+	public static final int END = 0;
+	public static final int TILE = 1;
+	public static final int CHUNK = 2;
+
+	public final File file;
+	/** The generation of the save or journal this journal's changes go on top of. */
+	public final long base;
+	/** The generation of the state this journal's changes lead to. */
+	public final long generation;
+	/** The names of the types the type numbers in the journal stand for, as written so far. */
+	protected final ArrayList<String> typeNames = new ArrayList<String>();
+	/** The batch being put together, if any. */
+	protected ByteArrayOutputStream batch;
+	protected DataOutputStream out;
+	/** The names of the types first used in the batch. */
+	protected ArrayList<String> newTypeNames;
+	/** The turn of the batch, which the ages in it are as of. */
+	protected int turn;
+
+	protected Journal(File file, long base, long generation) {
+		this.file = file;
+		this.base = base;
+		this.generation = generation;
+	}
+
+	/** @return A new journal in the given file, replacing any already there. */
+	public static Journal create(File file, long base, long generation) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(24);
+			header.putInt(MAGIC).putInt(VERSION).putLong(base).putLong(generation);
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		return new Journal(file, base, generation);
+	}
+
+	/**
+	 * @return Whether the type numbers in the journal stand for the same types as in the given
+	 * names, so more changes can be added with them.
+	*/
+	public boolean matches(List<String> typeNames) {
+		return typeNames.size() >= this.typeNames.size() &&
+				typeNames.subList(0, this.typeNames.size()).equals(this.typeNames);
+	}
+
+	/**
+	 * Starts a batch of changes, with the turn, random seed, player's state and type names of the
+	 * given snapshot. The type names have to match the journal's.
+	*/
+	public void startBatch(Snapshot s) throws IOException {
+		batch = new ByteArrayOutputStream();
+		out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(batch,
+				new Deflater(Deflater.BEST_SPEED), 1 << 16), 1 << 16));
+		turn = s.turn;
+		out.writeInt(s.turn);
+		out.writeLong(s.seed);
+		out.writeInt(s.playerX);
+		out.writeInt(s.playerY);
+		out.writeInt(s.carriedItem);
+		out.writeInt(s.carriedAge);
+		newTypeNames = new ArrayList<String>(s.typeNames.subList(typeNames.size(),
+				s.typeNames.size()));
+		out.writeInt(newTypeNames.size());
+		for (String name : newTypeNames) {
+			out.writeUTF(name);
+		}
+	}
+
+	/** Adds the type and age of a tile to the batch, the age being as of the batch's turn. */
+	public void addTile(int z, int y, int x, int type, int age) throws IOException {
+		out.writeByte(TILE);
+		Chunk.writeVarInt(out, x);
+		Chunk.writeVarInt(out, y);
+		out.writeByte(z);
+		Chunk.writeVarInt(out, type);
+		Chunk.writeVarInt(out, age);
+	}
+
+	/** Adds all the tiles of a chunk to the batch. */
+	public void addChunk(int index, Chunk c) throws IOException {
+		out.writeByte(CHUNK);
+		Chunk.writeVarInt(out, index);
+		c.writeRuns(out, turn);
+	}
+
+	/** Appends the batch to the journal, and makes sure it's on disk. */
+	public void endBatch() throws IOException {
+		out.writeByte(END);
+		out.close();
+		byte[] bytes = batch.toByteArray();
+		batch = null;
+		out = null;
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		ByteBuffer buffer = ByteBuffer.allocate(12 + bytes.length);
+		buffer.putInt(bytes.length).putLong(crc.getValue()).put(bytes);
+		buffer.flip();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+		typeNames.addAll(newTypeNames);
+	}
+
+	/**
+	 * @return The base and generation of the journal in the given file, or null if there's no
+	 * journal there.
+	*/
+	public static long[] readHeader(File file) {
+		if (!file.exists()) { return null; }
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(24);
+				while (header.hasRemaining() && channel.read(header) != -1) {}
+				header.flip();
+				if (header.remaining() < 24 || header.getInt() != MAGIC ||
+					header.getInt() != VERSION)
+				{
+					return null;
+				}
+				return new long[] { header.getLong(), header.getLong() };
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Applies the changes in the journal in the given file to the given snapshot, if they go on top
+	 * of it. A batch that was only partly written ends the journal, and is cut off so batches can
+	 * be appended after it again.
+	 * @return The journal, ready for more changes to be appended, or null if its changes don't go
+	 * on top of the snapshot.
+	*/
+	public static Journal replay(File file, Snapshot s) throws IOException {
+		long[] header = readHeader(file);
+		if (header == null || header[0] != s.generation) { return null; }
+		Journal journal = new Journal(file, header[0], header[1]);
+		ArrayList<String> names = journal.typeNames;
+		int[] typeMap = new int[0];
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long position = 24;
+			ByteBuffer lengths = ByteBuffer.allocate(12);
+			while (position < channel.size()) {
+				// Read in the next batch, checking it was written out completely.
+				lengths.clear();
+				while (lengths.hasRemaining() && channel.read(lengths, position +
+						lengths.position()) > 0) {}
+				lengths.flip();
+				int length = lengths.remaining() < 12 ? -1 : lengths.getInt();
+				long checksum = length < 0 ? 0 : lengths.getLong();
+				ByteBuffer bytes = null;
+				CRC32 crc = new CRC32();
+				if (length >= 0 && position + 12 + length <= channel.size()) {
+					bytes = ByteBuffer.allocate(length);
+					while (bytes.hasRemaining() && channel.read(bytes, position + 12 +
+							bytes.position()) > 0) {}
+					crc.update(bytes.array());
+				}
+				if (bytes == null || crc.getValue() != checksum) {
+					System.err.println("Left out a partly written batch at the end of " + file +
+							".");
+					channel.truncate(position);
+					break;
+				}
+				position += 12 + length;
+
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new InflaterInputStream(new ByteArrayInputStream(bytes.array()))));
+				s.turn = in.readInt();
+				s.seed = in.readLong();
+				s.playerX = in.readInt();
+				s.playerY = in.readInt();
+				int carriedItem = in.readInt();
+				s.carriedAge = in.readInt();
+				int newNames = in.readInt();
+				if (newNames > 0) {
+					typeMap = Arrays.copyOf(typeMap, names.size() + newNames);
+					for (int n = 0; n < newNames; n++) {
+						String name = in.readUTF();
+						typeMap[names.size()] = s.type(name);
+						names.add(name);
+					}
+				}
+				s.carriedItem = typeMap[carriedItem];
+				for (int kind = in.readByte(); kind != END; kind = in.readByte()) {
+					if (kind == TILE) {
+						int x = Chunk.readVarInt(in);
+						int y = Chunk.readVarInt(in);
+						int z = in.readByte();
+						s.setTile(z, y, x, typeMap[Chunk.readVarInt(in)], Chunk.readVarInt(in));
+					} else if (kind == CHUNK) {
+						s.createChunk(Chunk.readVarInt(in)).readRuns(in, typeMap, s.turn);
+					} else {
+						throw new IOException("Unknown record in " + file + ".");
+					}
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		s.generation = journal.generation;
+		return journal;
+	}
+
+	/**
+	 * Applies the changes in the journal in the given file to the snapshot in the given save, and
+	 * writes that out as the new save, whose generation is the journal's.
+	 * @return A new, empty journal in the given file, for the changes from here on.
+	*/
+	public static Journal compact(File save, File file, boolean compress) throws IOException {
+		Snapshot s = Snapshot.read(save);
+		Journal journal = replay(file, s);
+		if (journal == null) {
+			throw new IOException(file + " doesn't go with " + save + ".");
+		}
+		s.write(save, compress);
+		return create(file, journal.generation, SimRandom.mix(journal.generation));
+	}
+}
@@ -2,20 +2,33 @@ import javax.swing.JFrame;
 import java.awt.Canvas;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
 import java.awt.event.KeyListener;
 import java.awt.event.KeyEvent;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.DataLine;
+import javax.management.ObjectName;
 import java.util.HashMap;
 
 /**
@@ -41,25 +54,40 @@ import java.util.HashMap;
  * Original code by David Stark. david.stark@zarkonnen.com
 */
 public class Minigame extends Canvas implements KeyListener {
+	private static final long serialVersionUID = 1L;
+	
 	// Display & Graphics
 	/** The frame the game is displayed in. */
 	protected JFrame gameFrame;
+	/** The folder the rules and map are read from, or null for the folder the game jar is in. */
+	protected File gameFolder;
 	/** Font used for things' names. */
 	public static final Font NAME_FONT = new Font("Verdana", Font.PLAIN, 10);
 	/** Font used for the status bar. */
 	public static final Font STATUS_FONT = new Font("Verdana", Font.PLAIN, 13);
 	/** The pixel size of tiles. */
 	public static final int TILE_SIZE = 40;
-	/** How many tiles are displayed horizontally. */
+	/** How many tiles are displayed horizontally by default. */
 	public static final int SCREEN_X_TILES = 20;
-	/** How many tiles are displayed vertically. */
+	/** How many tiles are displayed vertically by default. */
 	public static final int SCREEN_Y_TILES = 13;
 	/** Vertical space allocated for status bar. */
 	public static final int STATUS_BAR_HEIGHT = 30;
-	/** Screen width in pixels. */
+	/** Default screen width in pixels. */
 	public static final int SCREEN_WIDTH = SCREEN_X_TILES * TILE_SIZE;
-	/** Screen height in pixels. */
+	/** Default screen height in pixels. */
 	public static final int SCREEN_HEIGHT = SCREEN_Y_TILES * TILE_SIZE + STATUS_BAR_HEIGHT;
+	/**
+	 * How many tiles are displayed, from the soapquest.viewWidth and soapquest.viewHeight system
+	 * properties.
+	*/
+	protected int viewTilesX = Integer.getInteger("soapquest.viewWidth", SCREEN_X_TILES);
+	protected int viewTilesY = Integer.getInteger("soapquest.viewHeight", SCREEN_Y_TILES);
+	/** Draws the published views. */
+	protected Renderer renderer = new Renderer();
+	/** Guards renderWanted, which says whether the render thread has to draw the screen again. */
+	protected final Object renderLock = new Object();
+	protected boolean renderWanted;
 	
 	// Status display
 	/** The name of the action performed, if any. */
@@ -68,56 +96,72 @@ public class Minigame extends Canvas implements KeyListener {
 	protected boolean transformDone;
 		
 	// Item Types
-	// Each type item is defined by an unique ID number.
-	/** The maximum number of item types. */
-	public static final int NUMBER_OF_TYPES = 1024;
-	// These are 2D lookup arrays determining what results from using one item on another.
-	/** What the player ends up holding after using the 1st-index item on the 2nd-index item. */
-	protected int[][] useCarriedResult = new int[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
-	/** What ends up on the ground after using the 1st-index item on the 2nd-index item. */
-	protected int[][] useTargetResult = new int[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
-	/** Message displayed when one item is used on another. */
-	protected String[][] useText = new String[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
+	// Each type item is defined by an unique ID number. The arrays indexed by type grow as types
+	// are added, so there is no fixed limit on the number of types.
+	/** The number of item types, including the base types. */
+	protected int numberOfTypes;
+	/** How many types the arrays indexed by type have room for to start with. */
+	public static final int INITIAL_TYPE_CAPACITY = 64;
+	// These are sparse tables keyed by a pair of types determining what results from using one
+	// item on another.
+	/**
+	 * The use rules, keyed by the carried item and the target item. Each holds what the player
+	 * ends up holding, what ends up on the ground and the index of the message in useTexts.
+	*/
+	protected RuleTable useRules = new RuleTable(3);
+	public static final int USE_CARRIED_RESULT = 0;
+	public static final int USE_TARGET_RESULT = 1;
+	public static final int USE_TEXT = 2;
+	/** Messages displayed when one item is used on another. */
+	protected ArrayList<String> useTexts = new ArrayList<String>();
 	/** Mapping of item names to their type numbers. */
 	protected HashMap<String, Integer> nameToType = new HashMap<String, Integer>();
 	/** Array of canonical item names indexed by their type. */
-	protected String[] typeNames = new String[NUMBER_OF_TYPES];
+	protected String[] typeNames = new String[INITIAL_TYPE_CAPACITY];
 	/** Array of verbose item names indexed by their type. */
-	protected String[] verboseTypeNames = new String[NUMBER_OF_TYPES];
+	protected String[] verboseTypeNames = new String[INITIAL_TYPE_CAPACITY];
 	/** The display colour of each type. */
-	protected Color[] typeColors = new Color[NUMBER_OF_TYPES];
+	protected Color[] typeColors = new Color[INITIAL_TYPE_CAPACITY];
 	
 	// Item behaviour
 	/** Whether the given type wanders around randomly. */
-	protected boolean[] typeWanders = new boolean[NUMBER_OF_TYPES];
-	// These are 2D lookup arrays determining how items can directly interact with one another.
-	/** What the item initiating the interaction ends up as. */
-	protected int[][] interactResultA = new int[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
-	/** What the item receiving the interaction ends up as. */
-	protected int[][] interactResultB = new int[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
+	protected boolean[] typeWanders = new boolean[INITIAL_TYPE_CAPACITY];
 	/**
-	 * The frequency at which items of the given types interact. 0 = many times a turn, 1 = once 
-	 * a turn, 2 = once every two turns, etc.
+	 * The interaction rules, keyed by the item initiating the interaction and the item receiving
+	 * it. Each holds what the initiating item ends up as, what the receiving item ends up as and
+	 * the frequency at which they interact: 0 = many times a turn, 1 = once a turn, 2 = once
+	 * every two turns, etc.
 	*/
-	protected int[][] interactionFrequency = new int[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
+	protected RuleTable interactionRules = new RuleTable(3);
+	public static final int INTERACT_RESULT_A = 0;
+	public static final int INTERACT_RESULT_B = 1;
+	public static final int INTERACTION_FREQUENCY = 2;
 	public static final int ALWAYS = 0;
 	/** The item type an item of a given type turns into after the given number of turns. */
-	protected int[] changeType = new int[NUMBER_OF_TYPES];
+	protected int[] changeType = new int[INITIAL_TYPE_CAPACITY];
 	/** How old an item has to be to become an item of another type, or 0 for no change. */
-	protected int[] changeAge = new int[NUMBER_OF_TYPES];
-	/** What item types, if any, an item of this type seeks out. */
-	protected boolean[][] soughtTypes = new boolean[NUMBER_OF_TYPES][NUMBER_OF_TYPES];
+	protected int[] changeAge = new int[INITIAL_TYPE_CAPACITY];
+	/**
+	 * Which item types an item of a given type seeks out, keyed by seeker and sought type. Each
+	 * holds how far away the seeker notices the sought item.
+	*/
+	protected RuleTable soughtTypes = new RuleTable(1);
+	public static final int SEEK_DISTANCE = 0;
 	/** Whether an item of this type seeks at all. */
-	protected boolean typeSeeks[] = new boolean[NUMBER_OF_TYPES];
-	/** How far a seeking item should look. Bigger numbers mean more "sight" but slower code. */
+	protected boolean typeSeeks[] = new boolean[INITIAL_TYPE_CAPACITY];
+	/** How far a seeking item looks unless its seek rule says otherwise. */
 	public static final int SEEK_RANGE = 5;
 	/** How far an item of this type lights things up. */
-	protected int[] typeLight = new int[NUMBER_OF_TYPES];
+	protected int[] typeLight = new int[INITIAL_TYPE_CAPACITY];
 	/**
 	 * Array of types' supertypes. If a type has a supertype and no transform/interaction for a
 	 * given situation, the program looks up its supertype.
 	*/
-	protected int[] supertype = new int[NUMBER_OF_TYPES];
+	protected int[] supertype = new int[INITIAL_TYPE_CAPACITY];
+	/** The rules above with type inheritance resolved, which is what the game looks rules up in. */
+	protected CompiledRules rules;
+	/** The flow fields towards items of each sought type, created when first needed. */
+	protected FlowField[] flowFields;
 	
 	// Item types. Keep in mind the distinction between NONE and NOTHING.
 	/** Type value indicating no transform, interaction or supertype. */
@@ -140,22 +184,30 @@ public class Minigame extends Canvas implements KeyListener {
 	public static final int FIRST_SAFE_ID = 6;
 	
 	// Map data
-	/** Number of tiles in the map. */
-	public static final int MAP_SIZE = 100;
+	/** Width and height of the map in tiles, for maps that don't say. */
+	public static final int DEFAULT_MAP_SIZE = 100;
 	/** Number of layers in the map. */
 	public static final int MAP_LAYERS = 2;
 	/** The map layer of the ground. */
 	public static final int GROUND_LAYER = 0;
 	/** The map layer of the things on the ground. */
 	public static final int PLAYER_LAYER = 1;
-	/** The type on each map tile, or NOTHING if it's empty. */
-	protected int[][][] map = new int[MAP_LAYERS][MAP_SIZE][MAP_SIZE];
-	/** The age of each map tile. */
-	protected int[][][] age = new int[MAP_LAYERS][MAP_SIZE][MAP_SIZE];
-	/** Whether the given tile has been visited by mapTick. */
-	protected boolean[][][] ticked = new boolean[MAP_LAYERS][MAP_SIZE][MAP_SIZE];
-	/** Whether a move is currently occurring. */
-	protected boolean moving = false;
+	/**
+	 * The map, which holds the type on each map tile (or NOTHING if it's empty), the age of each
+	 * tile, how much each tile is lit, and the turn in which each tile was last visited by mapTick.
+	 * A tile has been visited in the current tick if that is equal to the turn, so there is no
+	 * need to clear these.
+	*/
+	protected World world;
+	/**
+	 * The keys pressed that the simulation thread has yet to handle, along with commands such as
+	 * RELOAD_RULES.
+	*/
+	protected final LinkedBlockingQueue<Integer> input = new LinkedBlockingQueue<Integer>();
+	/** Command in the input queue to load the rules again, as put there by the rule watcher. */
+	public static final int RELOAD_RULES = -1;
+	/** The view last published by the simulation thread, which paint() draws. */
+	protected volatile View view;
 	// The player's coordinates.
 	protected int playerX;
 	protected int playerY;
@@ -163,12 +215,32 @@ public class Minigame extends Canvas implements KeyListener {
 	protected int carriedItem = NOTHING;
 	/** The age of the item carried. */
 	protected int carriedAge = 0;
+	/** The light the carried item currently casts on the map, and where it casts it from. */
+	protected int carriedLight = 0;
+	protected int carriedLightX;
+	protected int carriedLightY;
 	/** Whether the player has indicated they want to drop the item on the ground. */
 	protected boolean wantToDrop = false;
 	/** Which layer the player wants to interact with. */
 	protected int useTargetZ = PLAYER_LAYER;
-	/** Random source. */
-	public static final Random RANDOM = new Random();
+	/**
+	 * Random source, seeded from the soapquest.seed system property if it's set, or from the save
+	 * if it has a seed.
+	*/
+	protected SimRandom random = new SimRandom(Long.getLong("soapquest.seed",
+			SimRandom.mix(System.nanoTime())));
+	/** The random source for the current turn, split off from random. */
+	protected SimRandom turnRandom;
+	/**
+	 * How many threads the map tick runs on, from the soapquest.tickThreads system property. The
+	 * map ends up the same whatever the number.
+	*/
+	protected int tickThreads = Integer.getInteger("soapquest.tickThreads",
+			Runtime.getRuntime().availableProcessors());
+	/** The threads the map tick runs on, created when first needed. */
+	protected ForkJoinPool tickPool;
+	/** What the map tick did and how long it took, as shown over JMX. */
+	protected final TickStats tickStats = new TickStats();
 	// Arrays of adjacent relative locations.
 	public static final int[] ADJACENT_X = new int[] { 1, -1, 0, 0, 0, 0 };
 	public static final int[] ADJACENT_Y = new int[] { 0, 0, 1, -1, 0, 0 };
@@ -179,17 +251,57 @@ public class Minigame extends Canvas implements KeyListener {
 	protected int dayMode = 0;
 	/** Day mode interval. */
 	public static final int DAY_MODE_INTERVAL = 20;
+	// Rules
+	/** Loads the rules from the rule files in the game folder, or from the rule cache. */
+	protected final RuleLoader ruleLoader = new RuleLoader(this);
+	// Saves
+	/** The game's saves, in the game folder. */
+	protected Saves saves;
+	/**
+	 * How many turns go by between autosaves, from the soapquest.autosaveTurns system property,
+	 * or 0 for no autosaves.
+	*/
+	protected int autosaveTurns = Integer.getInteger("soapquest.autosaveTurns", 100);
+	/**
+	 * How many turns the F key fast-forwards by, from the soapquest.fastForwardTurns system
+	 * property.
+	*/
+	protected int fastForwardTurns = Integer.getInteger("soapquest.fastForwardTurns", 1000);
+	/**
+	 * The recording the keys pressed are added to, started if the soapquest.record system
+	 * property names a file to record to, or null.
+	*/
+	protected Recording recording;
 	/** Day mode brightness dividers. */
 	public static final double[] DAY_MODE_BRIGHTNESS_MULTIPLIER = { 1, 1, 1, 1, 1, 0.9, 0.8, 0.65,
 			0.5, 0.35, 0.3, 0.25, 0.2, 0.1, 0.15, 0.25, 0.3, 0.6, 0.8, 0.85, 0.9, 0.95, 1, 1, 1, 1,
 			1, 1, 1, 1, 1, 1, 1, 1, 1 };
-	/** How much a given tile is lit. */
-	protected double[][] lit = new double[MAP_SIZE][MAP_SIZE];
 	
-	/** Entry point method - creates game and puts it into a window. */
+	/**
+	 * Entry point method - creates game and puts it into a window. With --fast-forward <turns>,
+	 * runs that many turns without a window instead, and saves the result. With --server <port>,
+	 * runs a Server for players to share the world, and with --connect <host> <port>, joins one.
+	 * With --replay <file>, plays back a Recording without a window to check it plays out the same.
+	*/
 	public static void main(String[] args) {
+		if (args.length == 2 && args[0].equals("--fast-forward")) {
+			fastForwardHeadless(Integer.parseInt(args[1]));
+			return;
+		}
+		if (args.length == 2 && args[0].equals("--replay")) {
+			Recording.run(new File(args[1]));
+			return;
+		}
+		if (args.length == 2 && args[0].equals("--server")) {
+			Server.run(Integer.parseInt(args[1]));
+			return;
+		}
+		if (args.length == 3 && args[0].equals("--connect")) {
+			Client.run(args[1], Integer.parseInt(args[2]));
+			return;
+		}
 		Minigame g = new Minigame();
-		g.setSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+		g.setSize(g.viewTilesX * TILE_SIZE, g.viewTilesY * TILE_SIZE + STATUS_BAR_HEIGHT);
 		JFrame window = new JFrame();
 		window.add(g);
 		window.pack();
@@ -197,12 +309,48 @@ public class Minigame extends Canvas implements KeyListener {
 		window.addKeyListener(g);
 		g.addKeyListener(g);
 		window.setVisible(true);
+		g.createBufferStrategy(2);
+		g.start();
+	}
+	
+	/** Makes the tick stats available over JMX, as SoapQuest:type=TickStats. */
+	protected void registerTickStats() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(tickStats,
+					new ObjectName("SoapQuest:type=TickStats"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/** Loads the game without a window, runs the given number of turns and saves it in full. */
+	protected static void fastForwardHeadless(int turns) {
+		System.setProperty("java.awt.headless", "true");
+		Minigame g = new Minigame();
+		g.registerTickStats();
+		long start = System.nanoTime();
+		g.fastForward(turns);
+		long time = System.nanoTime() - start;
+		g.saveMap();
+		g.saves.finish();
+		System.out.println("Ran " + turns + " turns in " + time / 1000000 + " ms, up to turn " +
+				g.turn + ".");
 	}
 	
 	/** Initialises the game. */
 	protected Minigame() {
+		this(null);
+	}
+	
+	/**
+	 * Initialises the game from the given folder without displaying it, which is how the benchmarks
+	 * create their game state.
+	*/
+	protected Minigame(File gameFolder) {
+		this.gameFolder = gameFolder;
 		initBaseRules();
-		loadRules();
+		ruleLoader.load();
+		compileRules();
 		loadMap();
 		doLightCalculations();
 	}
@@ -231,27 +379,12 @@ public class Minigame extends Canvas implements KeyListener {
 	}
 	
 	protected void initBaseRules() {
-		// Initialise some base rules.
-		
-		// By default, no transforms or interactions happen.
-		for (int carriedI = 0; carriedI < NUMBER_OF_TYPES; carriedI++) {
-			for (int targetI = 0; targetI < NUMBER_OF_TYPES; targetI++) {
-				useCarriedResult[carriedI][targetI] = NONE;
-				useTargetResult[carriedI][targetI] = NONE;
-			}
-		}
-		
-		for (int a = 0; a < NUMBER_OF_TYPES; a++) {
-			for (int b = 0; b < NUMBER_OF_TYPES; b++) {
-				interactResultA[a][b] = NONE;
-				interactResultB[a][b] = NONE;
-			}
-		}
+		// Initialise some base rules. By default, no transforms or interactions happen, which is
+		// what the empty rule tables say already.
 		
 		// "Anything" is the supertype of anything but anything, ground and nothing.
-		for (int i = 0; i < NUMBER_OF_TYPES; i++) {
-			supertype[i] = ANYTHING;
-		}
+		Arrays.fill(supertype, ANYTHING);
+		numberOfTypes = FIRST_SAFE_ID;
 		supertype[NOTHING] = NONE;
 		supertype[ANYTHING] = NONE;
 		supertype[GROUND] = NONE;
@@ -279,148 +412,216 @@ public class Minigame extends Canvas implements KeyListener {
 		typeColors[CORPSE] = new Color(140, 0, 0);
 	}
 	
+	/**
+	 * Makes sure the arrays indexed by type have room for the given number of types, growing them
+	 * if needed.
+	*/
+	protected void ensureTypeCapacity(int types) {
+		if (types <= supertype.length) { return; }
+		int capacity = Math.max(types, supertype.length * 2);
+		typeNames = Arrays.copyOf(typeNames, capacity);
+		verboseTypeNames = Arrays.copyOf(verboseTypeNames, capacity);
+		typeColors = Arrays.copyOf(typeColors, capacity);
+		typeWanders = Arrays.copyOf(typeWanders, capacity);
+		changeType = Arrays.copyOf(changeType, capacity);
+		changeAge = Arrays.copyOf(changeAge, capacity);
+		typeSeeks = Arrays.copyOf(typeSeeks, capacity);
+		typeLight = Arrays.copyOf(typeLight, capacity);
+		int oldCapacity = supertype.length;
+		supertype = Arrays.copyOf(supertype, capacity);
+		Arrays.fill(supertype, oldCapacity, capacity, ANYTHING);
+	}
+	
 	// IO
 	/** @return The folder the game jar is in. */
 	protected File getGameFolder() throws Exception {
+		if (gameFolder != null) { return gameFolder; }
 		return new File(
 				Minigame.class.getProtectionDomain().getCodeSource().getLocation().toURI()).
 				getAbsoluteFile().getParentFile();
 	}
 	
-	// Load the game rules from CSV (ish) files.
-	protected void loadRules() {
-		String s = null;
-		File f = null;
-		
-		try {
-			// Types
-			// CSV of <name>, <r>, <g>, <b> [, <verbose name>, [, supertype]]
-			f = new File(getGameFolder(), "items.csv");
-			BufferedReader r = new BufferedReader(new FileReader(f));
-			int typeIndex = FIRST_SAFE_ID;
-			while ((s = r.readLine()) != null) {
-				// Ignore #-comments.
-				if (s.trim().startsWith("#") || s.trim().length() == 0) { continue; }
-				String[] bits = s.split(",", 6);
-				typeNames[typeIndex] = bits[0].trim();
-				typeColors[typeIndex] = new Color(
-						Integer.parseInt(bits[1].trim()),
-						Integer.parseInt(bits[2].trim()),
-						Integer.parseInt(bits[3].trim()));
-				if (bits.length > 4) {
-					verboseTypeNames[typeIndex] = bits[4].trim();
+	/**
+	 * Loads the rules from the contents of the rule files, on top of the base rules.
+	 * @param oldTypes The type numbers from the last time the rules were loaded, which types keep,
+	 * or null.
+	 * @param firstNewType The number of the first type that's not in oldTypes.
+	*/
+	protected void parseRules(byte[][] files, List<String> errors,
+			HashMap<String, Integer> oldTypes, int firstNewType)
+	{
+		loadItems(ruleReader(files[0], RuleLoader.RULE_FILES[0], errors), oldTypes, firstNewType);
+		loadTransformations(ruleReader(files[1], RuleLoader.RULE_FILES[1], errors));
+		loadBehaviours(ruleReader(files[2], RuleLoader.RULE_FILES[2], errors));
+	}
+	
+	/** @return A reader of the lines of the given rule file. */
+	protected RuleReader ruleReader(byte[] file, String name, List<String> errors) {
+		CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(file));
+		return new RuleReader(chars.array(), chars.limit(), name, errors);
+	}
+	
+	/** @return The type named in the given field of the reader's current line. */
+	protected int type(RuleReader r, int field) {
+		Integer type = nameToType.get(r.field(field));
+		if (type == null) {
+			throw new IllegalArgumentException("Unknown item \"" + r.field(field) + "\".");
+		}
+		return type;
+	}
+	
+	/**
+	 * Loads the types from items.csv.
+	 * @param oldTypes The type numbers from the last time the rules were loaded, which types keep,
+	 * or null.
+	 * @param firstNewType The number of the first type that's not in oldTypes.
+	*/
+	protected void loadItems(RuleReader r, HashMap<String, Integer> oldTypes, int firstNewType) {
+		// CSV of <name>, <r>, <g>, <b> [, <verbose name>, [, supertype]]
+		int nextType = firstNewType;
+		while (r.next()) {
+			try {
+				r.split(4, 6, "<name>, <r>, <g>, <b> [, <verbose name> [, <supertype>]]");
+				Color color = new Color(r.number(1), r.number(2), r.number(3));
+				int supertypeIndex = r.fields() > 5 ? type(r, 5) : ANYTHING;
+				String name = r.field(0);
+				Integer oldType = oldTypes == null ? null : oldTypes.get(name);
+				int typeIndex;
+				if (oldType != null && oldType >= FIRST_SAFE_ID &&
+					(oldType >= typeNames.length || typeNames[oldType] == null))
+				{
+					typeIndex = oldType;
 				} else {
-					verboseTypeNames[typeIndex] = typeNames[typeIndex];
-				}
-				if (bits.length > 5) {
-					supertype[typeIndex] = nameToType.get(bits[5].trim());
+					typeIndex = nextType++;
 				}
-
-				nameToType.put(typeNames[typeIndex], typeIndex);
-				typeIndex++;
+				ensureTypeCapacity(typeIndex + 1);
+				typeNames[typeIndex] = name;
+				typeColors[typeIndex] = color;
+				verboseTypeNames[typeIndex] = r.fields() > 4 ? r.field(4) : name;
+				supertype[typeIndex] = supertypeIndex;
+				nameToType.put(name, typeIndex);
+				numberOfTypes = Math.max(numberOfTypes, typeIndex + 1);
+			} catch (IllegalArgumentException e) {
+				r.error(e.getMessage());
 			}
-			r.close();
-			
-			// Transformations
-			// One of two formats:
-			// use, <carried>, <target>, <newCarried>, <newTarget>
-			// pickup, <item>
-			f = new File(getGameFolder(), "transformations.csv");
-			r = new BufferedReader(new FileReader(f));
-			while ((s = r.readLine()) != null) {
-				// Ignore #-comments.
-				if (s.trim().startsWith("#") || s.trim().length() == 0) { continue; }
-				if (s.trim().startsWith("pickup")) {
-					String[] bits = s.split(",", 2);
-					int type = nameToType.get(bits[1].trim());
-					useCarriedResult[NOTHING][type] = type;
-					useTargetResult[NOTHING][type] = NOTHING;
-					useText[NOTHING][type] = "pick up a " + verboseTypeNames[type];
-				}
-				if (s.trim().startsWith("use")) {
-					String[] bits = s.split(",", 6);
-					int carried = nameToType.get(bits[1].trim());
-					int target = nameToType.get(bits[2].trim());
-					int newCarried = nameToType.get(bits[3].trim());
-					int newTarget = nameToType.get(bits[4].trim());
-					useCarriedResult[carried][target] = newCarried;
-					useTargetResult[carried][target] = newTarget;
-					useText[carried][target] = bits[5].trim();
+		}
+	}
+	
+	/** Loads the use rules from transformations.csv. */
+	protected void loadTransformations(RuleReader r) {
+		// One of two formats:
+		// use, <carried>, <target>, <newCarried>, <newTarget>, <text>
+		// pickup, <item>
+		while (r.next()) {
+			try {
+				if (r.is(0, "pickup")) {
+					r.split(2, 2, "pickup, <item>");
+					int type = type(r, 1);
+					int rule = useRules.put(NOTHING, type);
+					useRules.set(rule, USE_CARRIED_RESULT, type);
+					useRules.set(rule, USE_TARGET_RESULT, NOTHING);
+					useRules.set(rule, USE_TEXT, useTexts.size());
+					useTexts.add("pick up a " + verboseTypeNames[type]);
+				} else if (r.is(0, "use")) {
+					r.split(6, 6, "use, <carried>, <target>, <newCarried>, <newTarget>, <text>");
+					int carried = type(r, 1);
+					int target = type(r, 2);
+					int newCarried = type(r, 3);
+					int newTarget = type(r, 4);
+					int rule = useRules.put(carried, target);
+					useRules.set(rule, USE_CARRIED_RESULT, newCarried);
+					useRules.set(rule, USE_TARGET_RESULT, newTarget);
+					useRules.set(rule, USE_TEXT, useTexts.size());
+					useTexts.add(r.field(5));
+				} else {
+					r.error("Unknown transformation \"" + r.field(0) + "\".");
 				}
+			} catch (IllegalArgumentException e) {
+				r.error(e.getMessage());
 			}
-			r.close();
-			
-			// Behaviours
-			// The following formats:
-			// wander, <type>
-			// interact, <sourceType>, <targetType>, <newSourceType>, <newTargetType>, <frequency>
-			// change, <sourceType>, <targetType>, <age>
-			// seek, <seekingType>, <soughtType>
-			// light, <type>, <range>
-			f = new File(getGameFolder(), "behaviours.csv");
-			r = new BufferedReader(new FileReader(f));
-			while ((s = r.readLine()) != null) {
-				// Ignore #-comments.
-				if (s.trim().startsWith("#") || s.trim().length() == 0) { continue; }
-				if (s.trim().startsWith("wander")) {
-					String[] bits = s.split(",", 2);
-					int type = nameToType.get(bits[1].trim());
-					typeWanders[type] = true;
-				}
-				if (s.trim().startsWith("interact")) {
-					String[] bits = s.split(",", 6);
-					int source = nameToType.get(bits[1].trim());
-					int target = nameToType.get(bits[2].trim());
-					int newSource = nameToType.get(bits[3].trim());
-					int newTarget = nameToType.get(bits[4].trim());
-					interactResultA[source][target] = newSource;
-					interactResultB[source][target] = newTarget;
-					interactionFrequency[source][target] = Integer.parseInt(bits[5].trim());
-				}
-				if (s.trim().startsWith("change")) {
-					String[] bits = s.split(",", 4);
-					int source = nameToType.get(bits[1].trim());
-					int target = nameToType.get(bits[2].trim());
+		}
+	}
+	
+	/** Loads the behaviours of the types from behaviours.csv. */
+	protected void loadBehaviours(RuleReader r) {
+		// The following formats:
+		// wander, <type>
+		// interact, <sourceType>, <targetType>, <newSourceType>, <newTargetType>, <frequency>
+		// change, <sourceType>, <targetType>, <age>
+		// seek, <seekingType>, <soughtType> [, <distance>]
+		// light, <type>, <range>
+		while (r.next()) {
+			try {
+				if (r.is(0, "wander")) {
+					r.split(2, 2, "wander, <type>");
+					typeWanders[type(r, 1)] = true;
+				} else if (r.is(0, "interact")) {
+					r.split(6, 6, "interact, <sourceType>, <targetType>, <newSourceType>, " +
+							"<newTargetType>, <frequency>");
+					int source = type(r, 1);
+					int target = type(r, 2);
+					int newSource = type(r, 3);
+					int newTarget = type(r, 4);
+					int frequency = r.number(5);
+					int rule = interactionRules.put(source, target);
+					interactionRules.set(rule, INTERACT_RESULT_A, newSource);
+					interactionRules.set(rule, INTERACT_RESULT_B, newTarget);
+					interactionRules.set(rule, INTERACTION_FREQUENCY, frequency);
+				} else if (r.is(0, "change")) {
+					r.split(4, 4, "change, <sourceType>, <targetType>, <age>");
+					int source = type(r, 1);
+					int target = type(r, 2);
+					int age = r.number(3);
 					changeType[source] = target;
-					changeAge[source] = Integer.parseInt(bits[3].trim());
-				}
-				if (s.trim().startsWith("seek")) {
-					String[] bits = s.split(",", 3);
-					int seeker = nameToType.get(bits[1].trim());
-					int sought = nameToType.get(bits[2].trim());
-					soughtTypes[seeker][sought] = true;
+					changeAge[source] = age;
+				} else if (r.is(0, "seek")) {
+					r.split(3, 4, "seek, <seekingType>, <soughtType> [, <distance>]");
+					int seeker = type(r, 1);
+					int sought = type(r, 2);
+					int distance = r.fields() > 3 ? r.number(3) : SEEK_RANGE;
+					int rule = soughtTypes.put(seeker, sought);
+					soughtTypes.set(rule, SEEK_DISTANCE, distance);
 					typeSeeks[seeker] = true;
+				} else if (r.is(0, "light")) {
+					r.split(3, 3, "light, <type>, <range>");
+					int type = type(r, 1);
+					typeLight[type] = r.number(2);
+				} else {
+					r.error("Unknown behaviour \"" + r.field(0) + "\".");
 				}
-				if (s.trim().startsWith("light")) {
-					String[] bits = s.split(",", 3);
-					int type = nameToType.get(bits[1].trim());
-					typeLight[type] = Integer.parseInt(bits[2].trim());
-				}
+			} catch (IllegalArgumentException e) {
+				r.error(e.getMessage());
 			}
-			r.close();
-		} catch (Exception e) {
-			System.err.println("Could not parse line in file " + f + ".");
-			System.err.println(s);
-			e.printStackTrace();
 		}
 	}
 	
+	/** Resolves type inheritance in the rules once, so looking them up is quick. */
+	protected void compileRules() {
+		rules = new CompiledRules(numberOfTypes, supertype, useRules, interactionRules, soughtTypes,
+				typeSeeks, typeWanders, changeAge);
+		flowFields = new FlowField[numberOfTypes];
+	}
+	
 	/** Load the game map from save if existing, otherwise from default map. */
 	protected void loadMap() {
 		File f = null;	
 		String s = null;
 		try {
+			saves = new Saves(getGameFolder());
 			// Init the map to contain grass on the ground.
-			for (int y = 0; y < MAP_SIZE; y++) {
-				for (int x = 0; x < MAP_SIZE; x++) {
-					map[GROUND_LAYER][y][x] = GRASS;
-				}
+			world = createWorld(DEFAULT_MAP_SIZE, DEFAULT_MAP_SIZE);
+			
+			// Load the save, unless the CSV export is newer, which is how modders edit saves.
+			if (saves.hasSave()) {
+				f = saves.saveFile;
+				loadSave();
+				return;
 			}
 			
-			// First, <turn>
+			// First, <turn> [, <width>, <height> [, <seed>]]
 			// Then, <playerX>, <playerY>, <carriedItem> [, <carriedItemAge>]
 			// Then, lines of <x>, <y>, <z>, <name> [, age]
-			f = new File(getGameFolder(), "save.csv");
+			f = saves.exportFile;
 			if (!f.exists()) {
 				f = new File(getGameFolder(), "map.csv");
 			}
@@ -433,7 +634,16 @@ public class Minigame extends Canvas implements KeyListener {
 				lineNumber++;
 				// First, read in turn number.
 				if (lineNumber == 1) {
-					turn = Integer.parseInt(s.trim());
+					String[] bits = s.split(",", 4);
+					turn = Integer.parseInt(bits[0].trim());
+					if (bits.length > 2) {
+						world = createWorld(Integer.parseInt(bits[1].trim()),
+								Integer.parseInt(bits[2].trim()));
+					}
+					if (bits.length > 3) {
+						setSeed(Long.parseLong(bits[3].trim()));
+					}
+					world.setTurn(turn);
 					dayMode = (turn / DAY_MODE_INTERVAL) % DAY_MODE_BRIGHTNESS_MULTIPLIER.length;
 					continue;
 				}
@@ -453,170 +663,314 @@ public class Minigame extends Canvas implements KeyListener {
 				int x = Integer.parseInt(bits[0].trim());
 				int y = Integer.parseInt(bits[1].trim());
 				int z = Integer.parseInt(bits[2].trim());
-				map[z][y][x] = nameToType.get(bits[3].trim());
+				world.setType(z, y, x, nameToType.get(bits[3].trim()));
 				if (bits.length > 4) {
-					age[z][y][x] = Integer.parseInt(bits[4].trim());
+					world.setAge(z, y, x, Integer.parseInt(bits[4].trim()));
 				}
 			}
 			r.close();
 		} catch (Exception e) {
-			System.err.println("Could not parse line " + s + " in file " + f + ".");
-			System.err.println(s);
+			if (s == null) {
+				System.err.println("Could not load " + f + ".");
+			} else {
+				System.err.println("Could not parse line " + s + " in file " + f + ".");
+				System.err.println(s);
+			}
 			e.printStackTrace();
 		}
 	}
 	
-	/** Saves the game map/state to disk. */
-	public void saveMap() {
-		try {
-			PrintWriter w = new PrintWriter(new File(getGameFolder(), "save.csv"));
-			
-			// Write turn number.
-			w.println(turn);
-			
-			// Write player location.
-			w.println(playerX + ", " + playerY + ", " + typeNames[carriedItem] + ", " +
-					carriedAge);
-			
-			// Write location of items.
-			for (int z = 0; z < MAP_LAYERS; z++) {
-				for (int y = 0; y < MAP_SIZE; y++) {
-					for (int x = 0; x < MAP_SIZE; x++) {
-						// Skip NOTHING on the player level and GRASS on the ground.
-						if (!(z == PLAYER_LAYER && map[z][y][x] == NOTHING) &&
-							!(z == GROUND_LAYER && map[z][y][x] == GRASS))
-						{
-							w.println(x + ", " + y + ", " + z + ", " + typeNames[map[z][y][x]] +
-									", " + age[z][y][x]);
-						}
-					}
-				}
-			}
-			
-			w.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	/**
+	 * Loads the game from the save and the journal of changes since, reading the tiles straight
+	 * into the world's chunks. Types are looked up by name, so a save still loads after types are
+	 * added to the rules.
+	*/
+	protected void loadSave() throws Exception {
+		loadSnapshot(saves.read(), saves.saveFile.toString());
 	}
 	
-	// Drawing routines
-	public void paint(Graphics g1) {
-		Graphics2D g = (Graphics2D) g1;
+	/**
+	 * Replaces the game's world and player with the ones in the given snapshot.
+	 * @param source Where the snapshot is from, for error messages.
+	*/
+	protected void loadSnapshot(Snapshot save, String source) throws IOException {
+		// Turn, map size and random seed.
+		turn = save.turn;
+		setSeed(save.seed);
+		dayMode = (turn / DAY_MODE_INTERVAL) % DAY_MODE_BRIGHTNESS_MULTIPLIER.length;
+		world = createWorld(save.width, save.height);
+		world.setTurn(turn);
 		
-		// Draw contents of tiles.
-		for (int z = 0; z < MAP_LAYERS; z++) {
-			for (int y = 0; y < SCREEN_Y_TILES; y++) {
-				for (int x = 0; x < SCREEN_X_TILES; x++) {
-					int mapX = x + playerX - SCREEN_X_TILES / 2;
-					int mapY = y + playerY - SCREEN_Y_TILES / 2;
-					if (mapX > -1 && mapX < MAP_SIZE && mapY > -1 && mapY < MAP_SIZE) {
-						drawTile(g, x, y, z, map[z][mapY][mapX], lit[mapY][mapX]);
-					}
-				}
+		// The types, by the type numbers used in the save.
+		int[] typeMap = new int[save.typeNames.size()];
+		boolean sameTypes = true;
+		for (int t = 0; t < typeMap.length; t++) {
+			Integer type = nameToType.get(save.typeNames.get(t));
+			if (type == null) {
+				throw new IOException(source + " holds unknown type " + save.typeNames.get(t) +
+						".");
 			}
+			typeMap[t] = type;
+			sameTypes &= type == t;
 		}
 		
-		// Draw indicator for where the player is.
-		drawPlayer(g);
+		// Player state.
+		playerX = save.playerX;
+		playerY = save.playerY;
+		carriedItem = typeMap[save.carriedItem];
+		carriedAge = save.carriedAge;
+		// The new world has none of the carried item's light on it yet.
+		carriedLight = 0;
 		
-		// Draw item names, only for the layer the player is on.
-		for (int y = 0; y < SCREEN_Y_TILES; y++) {
-			for (int x = 0; x < SCREEN_X_TILES; x++) {
-				int mapX = x + playerX - SCREEN_X_TILES / 2;
-				int mapY = y + playerY - SCREEN_Y_TILES / 2;
-				if (mapX > -1 && mapX < MAP_SIZE && mapY > -1 && mapY < MAP_SIZE) {
-					drawTileName(g, x, y, PLAYER_LAYER, map[PLAYER_LAYER][mapY][mapX]);
+		// The chunks that were ever created.
+		for (int i = 0; i < save.chunksX * save.chunksY; i++) {
+			Chunk c = save.chunk(i);
+			if (c == null) { continue; }
+			if (!sameTypes) {
+				for (int z = 0; z < MAP_LAYERS; z++) {
+					for (int tile = 0; tile < Chunk.AREA; tile++) {
+						c.setType(z, tile, typeMap[c.type(z, tile)]);
+					}
 				}
 			}
+			world.putChunk(c);
 		}
-		
-		drawStatusBar(g);
+		world.markSaved();
 	}
 	
-	protected void drawPlayer(Graphics2D g) {
-		// Draws a white circle significantly smaller than the tile size.
-		g.setColor(Color.WHITE);
-		g.fillOval(
-				(SCREEN_X_TILES / 2) * TILE_SIZE + TILE_SIZE / 4 + 4,
-				(SCREEN_Y_TILES / 2) * TILE_SIZE + TILE_SIZE / 4 + 4,
-				TILE_SIZE / 2 - 8,
-				TILE_SIZE / 2 - 8);
+	/** @return An empty world of the given size, with grass on the ground. */
+	protected World createWorld(int width, int height) {
+		int[] defaultTypes = new int[MAP_LAYERS];
+		defaultTypes[GROUND_LAYER] = GRASS;
+		defaultTypes[PLAYER_LAYER] = NOTHING;
+		return new World(width, height, defaultTypes, rules, typeLight);
 	}
 	
-	protected void drawTile(Graphics2D g, int x, int y, int z, int type, double l) {
-		if (type != NOTHING) {
-			// If it's night, make it dark.
-			Color c = typeColors[type];
-			if (l == 1) {
-				g.setColor(c);
-			} else {
-				g.setColor(new Color((int) (c.getRed() * l), (int) (c.getGreen() * l), (int) (c.getBlue() * l)));
+	/**
+	 * Saves the changes made since the game was last saved to the journal, or saves the game in
+	 * full if there's no journal to add to. The game is copied as it is now, which takes little
+	 * time, and the copy is written out on the save thread while the game goes on.
+	*/
+	public void saveChanges() {
+		saves.save(copyGame(true), false);
+		checkpoint();
+	}
+	
+	/**
+	 * Saves the game map/state to disk in full, as a Snapshot, and starts a new journal for the
+	 * changes from here on. Like saveChanges(), this writes out a copy on the save thread.
+	*/
+	public void saveMap() {
+		saves.save(copyGame(true), true);
+		checkpoint();
+	}
+	
+	/** Adds a checkpoint to the recording, if there is one. */
+	protected void checkpoint() {
+		if (recording != null) {
+			recording.checkpoint();
+		}
+	}
+	
+	/** Ends the recording with a checkpoint, if there is one. */
+	protected void stopRecording() {
+		if (recording == null) { return; }
+		recording.stop();
+		recording = null;
+	}
+	
+	/**
+	 * @return A snapshot of the game as it is now, whose chunks are taken from a copy of the
+	 * world, so it can be written out on the save thread while the game goes on.
+	 * @param takeChanges Whether the copy takes over which tiles changed since the last save.
+	*/
+	protected Snapshot copyGame(boolean takeChanges) {
+		Snapshot game = new Snapshot(world.copy(takeChanges));
+		game.turn = turn;
+		game.seed = random.seed;
+		game.typeNames.addAll(Arrays.asList(typeNames).subList(0, numberOfTypes));
+		game.playerX = playerX;
+		game.playerY = playerY;
+		game.carriedItem = carriedItem;
+		game.carriedAge = carriedAge;
+		return game;
+	}
+	
+	/**
+	 * Exports the game map/state as CSV, in the same format as map.csv, so it can be read and
+	 * edited by hand. The export is loaded instead of the save as long as it's newer. Like saves,
+	 * it's written out from a copy on the save thread.
+	*/
+	public void exportMap() {
+		saves.export(copyGame(false));
+	}
+	
+	// Drawing routines
+	/** Asks the render thread to draw the screen again, for example after it was uncovered. */
+	public void paint(Graphics g) {
+		requestRender();
+	}
+	
+	/** Leaves clearing the screen to the renderer, so it doesn't flicker. */
+	public void update(Graphics g) {
+		paint(g);
+	}
+	
+	/** Publishes the given view, and asks the render thread to draw it. */
+	protected void publish(View v) {
+		view = v;
+		requestRender();
+	}
+	
+	/** Asks the render thread to draw the last published view. */
+	protected void requestRender() {
+		synchronized (renderLock) {
+			renderWanted = true;
+			renderLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Draws the published view into the canvas's buffer strategy and shows it, whenever asked
+	 * to, until interrupted.
+	*/
+	protected void render() {
+		while (true) {
+			synchronized (renderLock) {
+				while (!renderWanted) {
+					try {
+						renderLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				renderWanted = false;
 			}
-			
-			if (z == GROUND_LAYER) {
-				// Render the ground layer as tiles.
-				g.fillRect(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
-			} else {
-				// Render items not at ground layer as ovals.
-				g.fillOval(
-						x * TILE_SIZE + TILE_SIZE / 4,
-						y * TILE_SIZE + TILE_SIZE / 4,
-						TILE_SIZE / 2,
-						TILE_SIZE / 2);
+			View v = view;
+			BufferStrategy strategy = getBufferStrategy();
+			if (v == null || strategy == null) { continue; }
+			try {
+				do {
+					do {
+						Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+						try {
+							renderer.draw(g, v);
+						} finally {
+							g.dispose();
+						}
+					} while (strategy.contentsRestored());
+					strategy.show();
+				} while (strategy.contentsLost());
+				Toolkit.getDefaultToolkit().sync();
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
 		}
 	}
 	
-	protected void drawTileName(Graphics2D g, int x, int y, int z, int type) {
-		// If there is an item here, draw its name.
-		if (type != NOTHING) {
-			g.setColor(Color.BLACK);
-			g.setFont(NAME_FONT);
-			// Split up the name into words to better fit it into a little square.
-			String[] bits = verboseTypeNames[type].split(" ");
-			for (int i = 0; i < bits.length; i++) {
-				g.drawString(bits[i], x * TILE_SIZE, y * TILE_SIZE + 3 + i * 11);
+	// Simulation thread
+	/**
+	 * Publishes the first view and starts the simulation thread, which handles key presses, and
+	 * the render thread, which draws the views it publishes.
+	*/
+	protected void start() {
+		registerTickStats();
+		String record = System.getProperty("soapquest.record");
+		if (record != null) {
+			recording = Recording.start(this, new File(record));
+		}
+		publish(new View(this, viewTilesX, viewTilesY));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				simulate();
+			}
+		}, "simulation");
+		t.setDaemon(true);
+		t.start();
+		t = new Thread(new Runnable() {
+			public void run() {
+				render();
+			}
+		}, "render");
+		t.setDaemon(true);
+		t.start();
+		t = new Thread(new Runnable() {
+			public void run() {
+				ruleLoader.watch();
+			}
+		}, "rule watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Handles the key presses in the input queue one after another, publishing a new view
+	 * whenever it catches up.
+	*/
+	protected void simulate() {
+		while (true) {
+			int key;
+			try {
+				key = input.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				handleKey(key);
+				if (input.isEmpty()) {
+					publish(new View(this, viewTilesX, viewTilesY));
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
 		}
 	}
 	
-	protected void drawStatusBar(Graphics2D g) {
-		String infoString = "Carrying: " + verboseTypeNames[carriedItem];
-		
+	/** @return Whether the player has been killed. */
+	protected boolean isDead() {
+		return world.type(PLAYER_LAYER, playerY, playerX) == CORPSE;
+	}
+	
+	/** @return The text of the status bar. */
+	protected String status() {
+		// Exception: the player has died.
+		if (isDead()) {
+			return "You have been killed.";
+		}
+		String s = "Carrying: " + verboseTypeNames[carriedItem];
 		if (action == null) {
-			infoString += " || Arrows to move/pick up/use, d to drop, period to interact with " +
-					"the ground, s to save.";
+			s += " || " + keyHelp();
 		} else {
-			infoString += " || " + action;
+			s += " || " + action;
 		}
-		
-		g.setColor(transformDone ? new Color(255, 255, 191) : Color.WHITE);
-		
-		// Exception: the player has died.
-		if (map[PLAYER_LAYER][playerY][playerX] == CORPSE) {
-			infoString = "You have been killed.";
-			g.setColor(Color.RED);
+		return s;
+	}
+	
+	/** @return The colour of the status bar. */
+	protected Color statusColor() {
+		if (isDead()) {
+			return Color.RED;
 		}
-		
-		g.fillRect(0, SCREEN_HEIGHT - STATUS_BAR_HEIGHT, SCREEN_WIDTH, STATUS_BAR_HEIGHT);
-		g.setColor(Color.BLACK);
-		g.setFont(STATUS_FONT);
-		g.drawString(infoString, 10, SCREEN_HEIGHT - 10);
+		return transformDone ? new Color(255, 255, 191) : Color.WHITE;
 	}
 	
-	// Keyboard
-	/** Listens to keyboard presses. */
-	public void keyPressed(KeyEvent e) {
-		// If we're busy with a move, ignore.
-		synchronized (this) {
-			if (moving) { return; }
-			moving = true;
+	/** Carries out what the given key asks for. Call this on the simulation thread. */
+	protected void handleKey(int key) {
+		if (key == RELOAD_RULES) {
+			// A recording can't be played back past rules changing under it.
+			stopRecording();
+			ruleLoader.reload();
+			return;
 		}
 		
 		// If the player is dead, don't respond to keyboard.
-		if (map[PLAYER_LAYER][playerY][playerX] == CORPSE) { return; }
+		if (isDead()) { return; }
+		
+		if (recording != null) {
+			recording.key(key);
+		}
 		
-		switch (e.getKeyCode()) {
+		switch (key) {
 			// Movement/executing drops.
 			case KeyEvent.VK_UP: {
 				if (wantToDrop) {
@@ -632,7 +986,8 @@ public class Minigame extends Canvas implements KeyListener {
 				} else {
 					movePlayer(0, 1);
 				}
-				break;			}
+				break;
+			}
 			case KeyEvent.VK_LEFT: {
 				if (wantToDrop) {
 					drop(-1, 0);
@@ -657,7 +1012,6 @@ public class Minigame extends Canvas implements KeyListener {
 					useTargetZ = PLAYER_LAYER;
 					action = "Interacting normally.";
 				}
-				repaint();
 				break;
 			}
 			// Tell the program you want to drop something.
@@ -669,22 +1023,46 @@ public class Minigame extends Canvas implements KeyListener {
 					wantToDrop = true;
 					action = "Please indicate drop direction by pressing an arrow key.";
 				}
-				repaint();
+				break;
+			}
+			// Run a lot of turns at once, showing the world again only at the end.
+			case KeyEvent.VK_F: {
+				action = "Fast-forwarding " + fastForwardTurns + " turns...";
+				publish(new View(this, viewTilesX, viewTilesY));
+				fastForward(fastForwardTurns);
+				saveChanges();
+				action = "Fast-forwarded " + fastForwardTurns + " turns and saved.";
 				break;
 			}
 			// Save the game.
 			case KeyEvent.VK_S: {
-				saveMap();
-				action = "Saved to save.csv. Delete save.csv and restart to reset game.";
-				repaint();
+				saveChanges();
+				action = "Saved. Delete " + Saves.SAVE_FILE + " and restart to reset game.";
+				break;
+			}
+			// Export the game as CSV.
+			case KeyEvent.VK_X: {
+				exportMap();
+				action = "Exported to " + Saves.EXPORT_FILE + ", which is loaded while it's " +
+						"newer than the save.";
 				break;
 			}
 		}
-		
-		// Allow for next move.
-		synchronized (this) {
-			moving = false;
-		}
+	}
+	
+	// Keyboard
+	/** @return What the keys do, for the status bar. */
+	protected String keyHelp() {
+		return "Arrows to move/pick up/use, d to drop, period to interact with the ground, " +
+				"s to save, x to export, f to fast-forward.";
+	}
+	
+	/**
+	 * Listens to keyboard presses, which are queued up for the simulation thread, so none are
+	 * lost while a move is going on.
+	*/
+	public void keyPressed(KeyEvent e) {
+		input.add(e.getKeyCode());
 	}
 	
 	// Needed to implement KeyListener, but not needed.
@@ -697,19 +1075,19 @@ public class Minigame extends Canvas implements KeyListener {
 		int newX = playerX + dx;
 		int newY = playerY + dy;
 		// Ignore if they are outside the map boundaries.
-		if (newX < 0 || newX >= MAP_SIZE || newY < 0 || newY >= MAP_SIZE) {
+		if (!world.contains(newY, newX)) {
 			return;
 		}
 		
-		int typeAtNewLocation = map[useTargetZ][newY][newX];
+		int typeAtNewLocation = world.type(useTargetZ, newY, newX);
 		
 		if (typeAtNewLocation == NOTHING) {
 			// If the place we want to move to is empty, move.
 			// Note that the code explicitly does not allow for the player to switch layers.
-			map[PLAYER_LAYER][newY][newX] = map[PLAYER_LAYER][playerY][playerX];
-			age[PLAYER_LAYER][newY][newX] = age[PLAYER_LAYER][playerY][playerX];
-			map[PLAYER_LAYER][playerY][playerX] = NOTHING;
-			age[PLAYER_LAYER][playerY][playerX] = 0;
+			world.setType(PLAYER_LAYER, newY, newX, world.type(PLAYER_LAYER, playerY, playerX));
+			world.setAge(PLAYER_LAYER, newY, newX, world.age(PLAYER_LAYER, playerY, playerX));
+			world.setType(PLAYER_LAYER, playerY, playerX, NOTHING);
+			world.setAge(PLAYER_LAYER, playerY, playerX, 0);
 			playerX = newX;
 			playerY = newY;
 			// Set action and transformDone to null/false since we've only walked.
@@ -717,38 +1095,22 @@ public class Minigame extends Canvas implements KeyListener {
 			transformDone = false;
 		} else {
 			// Don't allow interacting with something on the ground if there is something above it.
-			if (useTargetZ == GROUND_LAYER && map[PLAYER_LAYER][newY][newX] != NOTHING) {
+			if (useTargetZ == GROUND_LAYER && world.type(PLAYER_LAYER, newY, newX) != NOTHING) {
 				action = "There is something standing on the ground here. Move it and try again.";
 				transformDone = false; 
 			} else {
 				// If there is something there, try to interact with it.
 				// Figure out what the item we're carrying/item on the ground turns into when we use
-				// the one on the other. This is a bit complicated because we need to explore the
-				// supertypes of both source and target. The key to understanding the code below is
-				// that there is an assignment happening in the while condition!
+				// the one on the other.
 				int newCarriedType = NONE;
 				int newTargetType = NONE;
-				int sourceType = carriedItem;
-				int targetType = typeAtNewLocation;
-				int mySourceType = sourceType;
 				String myUseText = null;
-				do {
-					int myTargetType = targetType;
-					do {
-						if (useCarriedResult[mySourceType][myTargetType] != NONE) {
-							newCarriedType = useCarriedResult[mySourceType][myTargetType];
-							newTargetType = useTargetResult[mySourceType][myTargetType];
-							myUseText = useText[mySourceType][myTargetType];
-							
-							// Cache this discovery for faster access next time.
-							useCarriedResult[sourceType][targetType] = newCarriedType;
-							useTargetResult[sourceType][targetType] = newTargetType;
-							useText[sourceType][targetType] = myUseText;
-						}
-					} while (newCarriedType == NONE &&
-							(myTargetType = supertype[myTargetType]) != NONE);
-				} while (newCarriedType == NONE &&
-						(mySourceType = supertype[mySourceType]) != NONE);
+				int rule = findUse(carriedItem, typeAtNewLocation);
+				if (rule != -1) {
+					newCarriedType = rules.use.get(rule, USE_CARRIED_RESULT);
+					newTargetType = rules.use.get(rule, USE_TARGET_RESULT);
+					myUseText = useTexts.get(rules.use.get(rule, USE_TEXT));
+				}
 			
 				// If there is a transform, do it.
 				if (newCarriedType != NONE) {
@@ -757,14 +1119,14 @@ public class Minigame extends Canvas implements KeyListener {
 					action = "You " + myUseText + ".";
 					// Reset the transformed items' ages.
 					if (newTargetType != typeAtNewLocation) {
-						age[useTargetZ][newY][newX] = 0;
+						world.setAge(useTargetZ, newY, newX, 0);
 					}
 					if (newCarriedType != carriedItem) {
 						carriedAge = 0;
 					}
 					// Do the transform.
 					carriedItem = newCarriedType;
-					map[useTargetZ][newY][newX] = newTargetType;
+					world.setType(useTargetZ, newY, newX, newTargetType);
 				} else {
 					// We can't do anything.
 					transformDone = false;
@@ -784,223 +1146,149 @@ public class Minigame extends Canvas implements KeyListener {
 		
 		// Do a map tick.
 		mapTick();
-		
-		repaint();
 	}
 	
 	/** Drop the item carried onto the ground in the relative location given. */
 	protected void drop(int dx, int dy) {
 		int dropX = playerX + dx;
 		int dropY = playerY + dy;
-		if (dropX < 0 || dropX >= MAP_SIZE || dropY < 0 || dropY >= MAP_SIZE ||
-			map[PLAYER_LAYER][dropY][dropX] != 0)
-		{
+		if (!world.contains(dropY, dropX) || world.type(PLAYER_LAYER, dropY, dropX) != NOTHING) {
 			action = "Cannot drop item there.";
 		} else {
 			action = "Dropped " + verboseTypeNames[carriedItem] + ".";
-			map[PLAYER_LAYER][dropY][dropX] = carriedItem;
-			age[PLAYER_LAYER][dropY][dropX] = carriedAge;
+			world.setType(PLAYER_LAYER, dropY, dropX, carriedItem);
+			world.setAge(PLAYER_LAYER, dropY, dropX, carriedAge);
 			carriedItem = NOTHING;
 		}
 		
 		wantToDrop = false;
 		useTargetZ = PLAYER_LAYER;
 		mapTick();
-		repaint();
+	}
+	
+	// Rule lookup
+	// Type inheritance has already been resolved by compileRules(), so these are single lookups.
+	/**
+	 * @return The slot in rules.use of the use rule for the carried type on the target type, or -1
+	 * if there isn't one.
+	*/
+	protected int findUse(int carried, int target) {
+		return rules.use.find(carried, target);
+	}
+	
+	/**
+	 * @return The slot in rules.interaction of the interaction rule for the source type on the
+	 * target type, or -1 if there isn't one.
+	*/
+	protected int findInteraction(int source, int target) {
+		return rules.interaction.find(source, target);
+	}
+	
+	/** @return Whether items of the given type seek anything at all. */
+	protected boolean isSeeker(int type) {
+		return rules.seeker[type];
+	}
+	
+	/** @return The flow field towards items of the given type, worked out for this turn. */
+	protected FlowField flowField(int soughtType) {
+		if (flowFields[soughtType] == null) {
+			flowFields[soughtType] = new FlowField(PLAYER_LAYER, soughtType);
+		}
+		flowFields[soughtType].update(world, turn, rules.seekersOf[soughtType],
+				rules.soughtDistance[soughtType]);
+		return flowFields[soughtType];
+	}
+	
+	/** @return Whether items of the seeker type seek out items of the candidate type. */
+	protected boolean seeks(int seeker, int candidate) {
+		return rules.seeks.contains(seeker, candidate);
 	}
 	
 	// Map behaviour
-	/** Run the autonomous behaviour of map items. */
+	/** Run the autonomous behaviour of map items, and light up the map to match. */
 	protected void mapTick() {
+		runTurn();
+		doLightCalculations();
+		tickStats.endPhase(TickStats.LIGHT);
+		
+		// Let go of the parts of the map that are far away and have nothing going on.
+		world.pageOutIdleChunks(playerY, playerX);
+		tickStats.endPhase(TickStats.PAGING);
+		tickStats.endTurn(typeNames);
+		
+		if (autosaveTurns > 0 && turn % autosaveTurns == 0) {
+			saveChanges();
+		}
+	}
+	
+	/**
+	 * Runs the given number of turns back to back, without the player doing anything. The light
+	 * is only worked out again and the idle chunks paged out once at the end, which ends up the
+	 * same as after that many map ticks, only quicker. Call this on the simulation thread.
+	*/
+	public void fastForward(int turns) {
+		if (turns <= 0) { return; }
+		for (int i = 0; i < turns; i++) {
+			runTurn();
+			// The light is counted in the last turn, which is when it's worked out.
+			if (i < turns - 1) {
+				tickStats.endTurn(typeNames);
+			}
+		}
+		doLightCalculations();
+		tickStats.endPhase(TickStats.LIGHT);
+		world.pageOutIdleChunks(playerY, playerX);
+		tickStats.endPhase(TickStats.PAGING);
+		tickStats.endTurn(typeNames);
+	}
+	
+	/** Runs the autonomous behaviour of map items for one turn, leaving the light as it is. */
+	protected void runTurn() {
+		tickStats.startPhase();
 		// Keep track of day and night.
 		turn++;
 		if (turn % DAY_MODE_INTERVAL == 0) {
 			dayMode = (dayMode + 1) % DAY_MODE_BRIGHTNESS_MULTIPLIER.length;
 		}
 		
-		// The code maintains a set of booleans to see whether a given item has already had its
-		// turn. This is necessary because otherwise, an item that moves to a higher-indexed
-		// location would get picked up by the loop again.
-		for (int z = 0; z < MAP_LAYERS; z++) {
-			for (int y = 0; y < MAP_SIZE; y++) {
-				for (int x = 0; x < MAP_SIZE; x++) {
-					ticked[z][y][x] = false;
-				}
+		// The code keeps track of which turn each item last had its turn in. This is necessary
+		// because otherwise, an item that moves to a higher-indexed location would get picked up by
+		// the loop again.
+		// Now act upon each item that can do anything, a row of chunks at a time. Items that only
+		// do something at certain ages are only woken up by the world for the turns they're due
+		// in, and items of other types are left alone.
+		// Even rows are ticked first, then odd rows. Rows ticked together are never next to each
+		// other, so they can be ticked on different threads, and changes they make to the tiles
+		// next to them are put aside until they're all done.
+		turnRandom = random.split(turn);
+		world.setTurn(turn);
+		world.prepareTick();
+		for (int soughtType = 0; soughtType < numberOfTypes; soughtType++) {
+			if (rules.sought[soughtType]) {
+				flowField(soughtType);
 			}
 		}
-		
-		// Now act upon each item.
-		for (int z = 0; z < MAP_LAYERS; z++) {
-			for (int y = 0; y < MAP_SIZE; y++) {
-				for (int x = 0; x < MAP_SIZE; x++) {
-					if (!ticked[z][y][x]) {
-						// Increase the age of the item.
-						ticked[z][y][x] = true;
-						age[z][y][x]++;
-						
-						// Have it interact with others.
-						boolean interactionDone = false;
-						// Loop over all possible adjacent tiles.
-						for (int direction = 0; direction < ADJACENT_X.length; direction++) {
-							int targetX = x + ADJACENT_X[direction];
-							int targetY = y + ADJACENT_Y[direction];
-							int targetZ = z + ADJACENT_Z[direction];
-							// Check the target tile is within the map.
-							if (targetX > -1 && targetX < MAP_SIZE &&
-								targetY > -1 && targetY < MAP_SIZE &&
-								targetZ > -1 && targetZ < MAP_LAYERS)
-							{
-								// Check if there is an interaction. This is a bit complicated due
-								// to type inheritance, so we need to explore the supertypes of 
-								// both source and target. The key to understanding the code below
-								// is that there is an assignment happening in the while condition!
-								int newSourceType = NONE;
-								int newTargetType = NONE;
-								int sourceType = map[z][y][x];
-								int targetType = map[targetZ][targetY][targetX];
-								int mySourceType = sourceType;
-								int freq = -1;
-								do {
-									int myTargetType = targetType;
-									do {
-										if (interactResultA[mySourceType][myTargetType] != NONE) {
-											newSourceType = interactResultA[mySourceType][myTargetType];
-											newTargetType = interactResultB[mySourceType][myTargetType];
-											freq = interactionFrequency[mySourceType][myTargetType];
-											
-											// Cache this discovery for faster access next time.
-											interactResultA[sourceType][targetType] = newSourceType;
-											interactResultB[sourceType][targetType] = newTargetType;
-											interactionFrequency[sourceType][targetType] = freq;
-										}
-									} while (newSourceType == NONE &&
-											(myTargetType = supertype[myTargetType]) != NONE);
-								} while (newSourceType == NONE &&
-										(mySourceType = supertype[mySourceType]) != NONE);
-								
-								if (newSourceType != NONE) {
-									// Check the frequency value: it should either be ALWAYS or
-									// of a frequency where the age of the current item is a
-									// multiple of the frequency, and with the item having done
-									// no other interaction yet.
-									if (freq == ALWAYS ||
-										(age[z][y][x] % freq == 0 && !interactionDone))
-									{
-										// All right! The two items interact.
-										// Reset the ages if necessary.
-										if (sourceType != newSourceType) {
-											age[z][y][x] = 0;
-										}
-										if (targetType != newTargetType) {
-											age[targetZ][targetY][targetX] = 0;
-										}
-										// Transform.
-										map[z][y][x] = newSourceType;
-										map[targetZ][targetY][targetX] = newTargetType;
-										ticked[targetZ][targetY][targetX] = true;
-										// Note that we've done a transform.
-										interactionDone = true;
-									} // End check for frequency.
-								} // End check for transform.
-							} // End check for target within map and not NOTHING.
-						} // End loop about directions.
-						
-						// If it's old enough, it might change into something else.
-						if (changeAge[map[z][y][x]] != 0 &&
-							age[z][y][x] >= changeAge[map[z][y][x]])
-						{
-							map[z][y][x] = changeType[map[z][y][x]];
-							age[z][y][x] = 0;
-						}
-						
-						// Seeking and wandering are next, but only count for non-ground tiles.
-						if (z != PLAYER_LAYER) {
-							continue;
-						}
-						
-						// The item may have seeking behaviour.
-						boolean hasMoved = false;
-						
-						// Check if it seeks.
-						int myType = map[z][y][x];
-						boolean seeking;
-						do {
-							seeking = typeSeeks[myType];
-						} while (!seeking && (myType = supertype[myType]) != NONE);
-						
-						if (seeking) {
-							// Cache the fact this item seeks.
-							typeSeeks[map[z][y][x]] = true;
-						
-							// Now scan the surrounding area and try to find something to seek.
-							int startX = Math.max(0, x - SEEK_RANGE);
-							int endX = Math.min(MAP_SIZE, x + SEEK_RANGE + 1);
-							int startY = Math.max(0, y - SEEK_RANGE);
-							int endY = Math.min(MAP_SIZE, y + SEEK_RANGE + 1);
-							
-							int newX = 0;
-							int newY = 0;
-							
-							boolean seekThisOne = false;
-							for (int yy = startY; yy < endY && !seekThisOne; yy++) {
-								for (int xx = startX; xx < endX && !seekThisOne; xx++) {
-									if (x == xx && y == yy) { continue; }
-									// Now, we need to explore the supertype structures and see if
-									// this item seeks the candidate item.
-									int candidateType = map[PLAYER_LAYER][yy][xx];
-									if (candidateType == NOTHING) { continue; } // Optimisation.
-									myType = map[z][y][x];
-									do {
-										int myCandidateType = candidateType;
-										do {
-											if (soughtTypes[myType][myCandidateType]) {
-												// Cache.
-												soughtTypes[map[z][y][x]][map[PLAYER_LAYER][yy][xx]] = true;
-												seekThisOne = true;
-												newX = x == xx ? x : x + (xx - x) / Math.abs(xx - x);
-												newY = y == yy ? y : y + (yy - y) / Math.abs(yy - y);
-											}
-										} while (!seekThisOne &&
-												(myCandidateType = supertype[myCandidateType]) != NONE);
-									} while (!seekThisOne &&
-											(myType = supertype[myType]) != NONE);
-								} // End loop over x-axis.
-							} // End loop over y-axis.
-							
-							// Try to actually move that way.
-							if (seekThisOne && map[z][newY][newX] == NOTHING) {
-								map[z][newY][newX] = map[z][y][x];
-								age[z][newY][newX] = age[z][y][x];
-								ticked[z][newY][newX] = true;
-								map[z][y][x] = NOTHING;
-								hasMoved = true;
-							}
-						} // End seeking.
-					
-						// If the item wanders around, make it move.
-						if (!hasMoved && typeWanders[map[z][y][x]]) {
-							// Choose a random direction.
-							int direction = RANDOM.nextInt(ADJACENT_X.length);
-							int newX = x + ADJACENT_X[direction];
-							int newY = y + ADJACENT_Y[direction];
-							// Don't make it wander in the z-direction.
-							// Check the target loc is free/we're actually moving.
-							if (newX > -1 && newX < MAP_SIZE && newY > -1 && newY < MAP_SIZE &&
-								map[z][newY][newX] == NOTHING)
-							{
-								// Move it and tick its new location.
-								map[z][newY][newX] = map[z][y][x];
-								age[z][newY][newX] = age[z][y][x];
-								ticked[z][newY][newX] = true;
-								map[z][y][x] = NOTHING;
-							} // End check if wander location free.
-						} // End check if item type wanders.
-					} // End check if tile already ticked.
-				} // x
-			} // y
-		} // z
+		tickStats.endPhase(TickStats.PREPARE);
+		for (int parity = 0; parity < 2; parity++) {
+			ArrayList<TickStrip> strips = new ArrayList<TickStrip>();
+			for (int row = parity; row < world.chunksY; row += 2) {
+				strips.add(new TickStrip(world, row));
+			}
+			tickStrips(strips);
+			tickStats.endPhase(TickStats.TILES);
+			for (TickStrip strip : strips) {
+				strip.apply();
+				tickStats.add(strip);
+			}
+			tickStats.endPhase(TickStats.APPLY);
+		}
 		
 		// And don't forget aging/changing the item the player may be holding.
+		ageCarriedItem();
+	}
+	
+	/** Ages the item the player is holding, which may change it into something else. */
+	protected void ageCarriedItem() {
 		if (carriedItem != NOTHING) {
 			carriedAge++;
 			if (changeAge[carriedItem] != 0 && carriedAge >= changeAge[carriedItem])
@@ -1009,44 +1297,229 @@ public class Minigame extends Canvas implements KeyListener {
 				carriedAge = 0;
 			}
 		}
-		
-		doLightCalculations();
 	}
 	
-	protected void doLightCalculations() {
-		// Light up the map.
-		for (int y = 0; y < MAP_SIZE; y++) { for (int x = 0; x < MAP_SIZE; x++) {
-			lit[y][x] = DAY_MODE_BRIGHTNESS_MULTIPLIER[dayMode];
-		}}
+	/** Ticks the given strips, on as many threads as tickThreads allows. */
+	protected void tickStrips(List<TickStrip> strips) {
+		if (tickThreads < 2 || strips.size() < 2) {
+			for (TickStrip strip : strips) {
+				tickStrip(strip);
+			}
+			return;
+		}
+		if (tickPool == null) {
+			tickPool = new ForkJoinPool(tickThreads);
+		}
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final TickStrip strip : strips) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					tickStrip(strip);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Object> f : tickPool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** Ticks the active tiles in the given strip's chunks, a layer at a time. */
+	protected void tickStrip(TickStrip strip) {
+		TileSet resident = world.residentChunks();
+		int start = strip.row * world.chunksX;
+		int end = start + world.chunksX;
+		for (int z = 0; z < MAP_LAYERS; z++) {
+			for (int i = resident.next(start); i != -1 && i < end; i = resident.next(i + 1)) {
+				Chunk c = world.chunk(i);
+				TileSet activeTiles = c.active[z];
+				for (int tile = activeTiles.next(0); tile != -1;
+					tile = activeTiles.next(tile + 1))
+				{
+					tickTile(strip, z, (c.cy << Chunk.SHIFT) + (tile >> Chunk.SHIFT),
+							(c.cx << Chunk.SHIFT) + (tile & Chunk.MASK));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Run the autonomous behaviour of the item on the given tile, which is in the given strip.
+	 * All tile access goes through the strip.
+	*/
+	protected void tickTile(TickStrip strip, int z, int y, int x) {
+		if (strip.tickedOn(z, y, x) == turn) { return; }
+		
+		// The item got a turn older by itself, since its age is counted from its birth turn.
+		strip.setTickedOn(z, y, x, turn);
+		strip.count(TickStats.AGED, strip.type(z, y, x));
+		
+		// Have it interact with others.
+		boolean interactionDone = false;
+		// Loop over all possible adjacent tiles, unless it has no one to interact with.
+		for (int direction = 0; direction < ADJACENT_X.length; direction++) {
+			// It may have turned into something that interacts with nothing.
+			if (!rules.interacts[strip.type(z, y, x)]) { break; }
+			int targetX = x + ADJACENT_X[direction];
+			int targetY = y + ADJACENT_Y[direction];
+			int targetZ = z + ADJACENT_Z[direction];
+			// Check the target tile is within the map.
+			if (world.contains(targetY, targetX) && targetZ > -1 && targetZ < MAP_LAYERS) {
+				// Check if there is an interaction.
+				int newSourceType = NONE;
+				int newTargetType = NONE;
+				int sourceType = strip.type(z, y, x);
+				int targetType = strip.type(targetZ, targetY, targetX);
+				if (!rules.canInteract(sourceType, targetType)) { continue; }
+				int freq = -1;
+				int rule = findInteraction(sourceType, targetType);
+				strip.count(TickStats.RULE_LOOKUPS, sourceType);
+				if (rule != -1) {
+					newSourceType = rules.interaction.get(rule, INTERACT_RESULT_A);
+					newTargetType = rules.interaction.get(rule, INTERACT_RESULT_B);
+					freq = rules.interaction.get(rule, INTERACTION_FREQUENCY);
+				}
+		
+				if (newSourceType != NONE) {
+					// Check the frequency value: it should either be ALWAYS or
+					// of a frequency where the age of the current item is a
+					// multiple of the frequency, and with the item having done
+					// no other interaction yet.
+					if (freq == ALWAYS ||
+						(strip.age(z, y, x) % freq == 0 && !interactionDone))
+					{
+						// All right! The two items interact.
+						// Reset the ages if necessary.
+						if (sourceType != newSourceType) {
+							strip.setAge(z, y, x, 0);
+						}
+						if (targetType != newTargetType) {
+							strip.setAge(targetZ, targetY, targetX, 0);
+						}
+						// Transform.
+						strip.setType(z, y, x, newSourceType);
+						strip.setType(targetZ, targetY, targetX, newTargetType);
+						strip.setTickedOn(targetZ, targetY, targetX, turn);
+						// Note that we've done a transform.
+						interactionDone = true;
+						strip.count(TickStats.INTERACTIONS, sourceType);
+					} // End check for frequency.
+				} // End check for transform.
+			} // End check for target within map and not NOTHING.
+		} // End loop about directions.
+		
+		// If it's old enough, it might change into something else.
+		if (changeAge[strip.type(z, y, x)] != 0 &&
+			strip.age(z, y, x) >= changeAge[strip.type(z, y, x)])
+		{
+			strip.count(TickStats.CHANGES, strip.type(z, y, x));
+			strip.setType(z, y, x, changeType[strip.type(z, y, x)]);
+			strip.setAge(z, y, x, 0);
+		}
 		
-		for (int z = 0; z < MAP_LAYERS; z++) { for (int y = 0; y < MAP_SIZE; y++) { for (int x = 0; x < MAP_SIZE; x++) {
-			int light = typeLight[map[z][y][x]];
-			double intensity = light / 6.0;
-			if (light != 0) {
-				light = Math.abs(light);
-				int startX = Math.max(0, x - light);
-				int endX = Math.min(MAP_SIZE, x + light + 1);
-				int startY = Math.max(0, y - light);
-				int endY = Math.min(MAP_SIZE, y + light + 1);
-				for (int yy = startY; yy < endY; yy++) { for (int xx = startX; xx < endX; xx++) {
-					lit[yy][xx] = Math.max(0, Math.min(1, lit[yy][xx] +
-							intensity / ((x - xx) * (x - xx) + (y - yy) * (y - yy) + 1)));
-				} } // End inner y/x loop
-			} // End check for light
-		} } } // End z/y/x loop
+		// Seeking and wandering are next, but only count for non-ground tiles.
+		if (z != PLAYER_LAYER) {
+			return;
+		}
+		
+		// The item may have seeking behaviour.
+		boolean hasMoved = false;
+		
+		// Check if it seeks.
+		int type = strip.type(z, y, x);
+		if (isSeeker(type)) {
+			strip.count(TickStats.SEEKS, type);
+			// Follow the flow field of whichever sought item is closest, if one is in range.
+			FlowField closest = null;
+			int closestDistance = FlowField.UNREACHED;
+			for (int i = 0; i < rules.seekTargets[type].length; i++) {
+				FlowField field = flowField(rules.seekTargets[type][i]);
+				int direction = field.bestDirection(y, x);
+				if (direction == -1) { continue; }
+				int distance = field.distance(y + FlowField.DY[direction],
+						x + FlowField.DX[direction]) + 1;
+				if (distance <= rules.seekDistances[type][i] && distance < closestDistance) {
+					closest = field;
+					closestDistance = distance;
+				}
+			}
+			// Seekers next to what they seek stay put.
+			if (closest != null && closestDistance > 1) {
+				int direction = closest.bestDirection(y, x);
+				int newX = x + FlowField.DX[direction];
+				int newY = y + FlowField.DY[direction];
+				// Try to actually move that way.
+				if (strip.type(z, newY, newX) == NOTHING) {
+					strip.setType(z, newY, newX, strip.type(z, y, x));
+					strip.setAge(z, newY, newX, strip.age(z, y, x));
+					strip.setTickedOn(z, newY, newX, turn);
+					strip.setType(z, y, x, NOTHING);
+					hasMoved = true;
+					strip.count(TickStats.SEEKS_MOVED, type);
+				}
+			} // End check for something to seek.
+		} // End seeking.
 		
-		if (carriedItem != NONE && typeLight[carriedItem] != 0) {
-			int light = typeLight[carriedItem];
-			double intensity = light / 6.0;
-			light = Math.abs(light);
-			int startX = Math.max(0, playerX - light);
-			int endX = Math.min(MAP_SIZE, playerX + light + 1);
-			int startY = Math.max(0, playerY - light);
-			int endY = Math.min(MAP_SIZE, playerY + light + 1);
-			for (int yy = startY; yy < endY; yy++) { for (int xx = startX; xx < endX; xx++) {
-				lit[yy][xx] = Math.max(0, Math.min(1, lit[yy][xx] +
-						intensity / ((playerX - xx) * (playerX - xx) + (playerY - yy) * (playerY - yy) + 1)));
-			} } // End inner y/x loop
+		// If the item wanders around, make it move.
+		if (!hasMoved && typeWanders[strip.type(z, y, x)]) {
+			// Choose a random direction.
+			int direction = tileRandom(z, y, x, ADJACENT_X.length);
+			int newX = x + ADJACENT_X[direction];
+			int newY = y + ADJACENT_Y[direction];
+			// Don't make it wander in the z-direction.
+			// Check the target loc is free/we're actually moving.
+			if (world.contains(newY, newX) && strip.type(z, newY, newX) == NOTHING) {
+				// Move it and tick its new location.
+				strip.setType(z, newY, newX, strip.type(z, y, x));
+				strip.setAge(z, newY, newX, strip.age(z, y, x));
+				strip.setTickedOn(z, newY, newX, turn);
+				strip.setType(z, y, x, NOTHING);
+				strip.count(TickStats.WANDERS, type);
+			} // End check if wander location free.
+		} // End check if item type wanders.
+	}
+	
+	/**
+	 * @return A random number from 0 to bound - 1 for the item on the given tile in this turn. It
+	 * only depends on the seed, the turn and the tile, so it doesn't matter in which order or on
+	 * which thread the tiles are ticked.
+	*/
+	protected int tileRandom(int z, int y, int x, int bound) {
+		return turnRandom.nextInt(World.pack(y, x) * MAP_LAYERS + z, bound);
+	}
+	
+	/** Seeds the random source, so the game plays out the same given the same moves. */
+	protected void setSeed(long seed) {
+		random = new SimRandom(seed);
+	}
+	
+	protected void doLightCalculations() {
+		long lightSplats = world.lightSplats;
+		// Update the light around the light sources on the map that changed, and tell the world
+		// how bright the day is.
+		world.updateLights();
+		world.setBaseLight(DAY_MODE_BRIGHTNESS_MULTIPLIER[dayMode]);
+		moveCarriedLight();
+		tickStats.addLightSplats(world.lightSplats - lightSplats);
+	}
+	
+	/** Moves the light of the item the player carries along with the player. */
+	protected void moveCarriedLight() {
+		int light = carriedItem == NONE ? 0 : typeLight[carriedItem];
+		if (light != carriedLight || playerX != carriedLightX || playerY != carriedLightY) {
+			if (carriedLight != 0) {
+				world.addLight(carriedLightY, carriedLightX, carriedLight, -1);
+			}
+			carriedLight = light;
+			carriedLightX = playerX;
+			carriedLightY = playerY;
+			if (carriedLight != 0) {
+				world.addLight(carriedLightY, carriedLightX, carriedLight, 1);
+			}
 		}
 	}
-}
\ No newline at end of file
+}
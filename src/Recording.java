@@ -0,0 +1,244 @@
+import java.awt.event.KeyEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A recording of a game being played, which can be played back without a window as fast as the
+ * game goes, to check that it still plays out the same and to measure how fast it does.
+ * A recording starts with MAGIC, VERSION and the hash of the rule files, followed by the game as
+ * it was when recording started, as in a save, random seed and all. Then come the keys that
+ * change the world, each with the turn it was pressed in, and checkpoints, each with a turn and
+ * a hash of the game in that turn, added whenever the game is saved. It's all GZIP compressed,
+ * and flushed after each record, so a recording is good up to its last record however the game
+ * ends.
+*/
+public class Recording {
+	/** The first four bytes of a recording, "SQRP". */
+	public static final int MAGIC = 0x53515250;
+	/** The version of the recording format. */
+	public static final int VERSION = 2;
+	// The kinds of records.
+	/** A key: the turn, the key code and, for fast-forwarding, how many turns. */
+	public static final int KEY = 1;
+	/** A checkpoint: the turn and the hash of the game, as by hash(). */
+	public static final int CHECKPOINT = 2;
+	/** The keys that are recorded. The others don't change the world. */
+	public static final int[] KEYS = { KeyEvent.VK_UP, KeyEvent.VK_DOWN, KeyEvent.VK_LEFT,
+			KeyEvent.VK_RIGHT, KeyEvent.VK_D, KeyEvent.VK_PERIOD, KeyEvent.VK_F };
+
+	/** The game being recorded. */
+	protected final Minigame g;
+	public final File file;
+	protected final DataOutputStream out;
+	/** Whether the recording was stopped, after which nothing more is added to it. */
+	protected boolean stopped;
+
+	protected Recording(Minigame g, File file, DataOutputStream out) {
+		this.g = g;
+		this.file = file;
+		this.out = out;
+	}
+
+	/**
+	 * Loads the game without a window and plays back the recording in the given file, exiting
+	 * with 0 if it played out as recorded and 1 if not. Nothing is saved.
+	*/
+	public static void run(File file) {
+		System.setProperty("java.awt.headless", "true");
+		Minigame g = new Minigame();
+		g.registerTickStats();
+		g.autosaveTurns = 0;
+		boolean ok = false;
+		try {
+			ok = replay(g, file);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * @return A hash of the world and the player, for telling whether a game played back plays
+	 * out the same as when it was recorded.
+	*/
+	public static long hash(Minigame g) {
+		long hash = g.world.hash();
+		hash = hash * 31 + g.turn;
+		hash = hash * 31 + g.playerX;
+		hash = hash * 31 + g.playerY;
+		hash = hash * 31 + g.carriedItem;
+		hash = hash * 31 + g.carriedAge;
+		return SimRandom.mix(hash);
+	}
+
+	/** @return Whether the given key is recorded. */
+	public static boolean isRecorded(int key) {
+		for (int k : KEYS) {
+			if (k == key) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * @return A new recording of the given game in the given file, replacing any already there,
+	 * starting from the game as it is now and the rule files it was loaded from, or null if the
+	 * file couldn't be written.
+	*/
+	public static Recording start(Minigame g, File file) {
+		Snapshot game = g.copyGame(false);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(new FileOutputStream(file), 1 << 16, true), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			byte[] ruleHash = RuleLoader.hash(g.ruleLoader.readFiles());
+			out.writeInt(ruleHash.length);
+			out.write(ruleHash);
+			game.writeBody(out);
+			out.flush();
+			return new Recording(g, file, out);
+		} catch (Exception e) {
+			System.err.println("Could not record to " + file + ".");
+			e.printStackTrace();
+			return null;
+		} finally {
+			game.copy.release();
+		}
+	}
+
+	/**
+	 * Adds the given key, pressed in the game's current turn, if it's one that's recorded. If the
+	 * recording can't be written to, it's stopped.
+	*/
+	public void key(int key) {
+		if (stopped || !isRecorded(key)) { return; }
+		try {
+			out.writeByte(KEY);
+			out.writeInt(g.turn);
+			out.writeInt(key);
+			out.writeInt(g.fastForwardTurns);
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			stop();
+		}
+	}
+
+	/**
+	 * Adds a checkpoint with the hash of the game in its current turn. If the recording can't be
+	 * written to, it's stopped.
+	*/
+	public void checkpoint() {
+		if (stopped) { return; }
+		try {
+			writeCheckpoint();
+		} catch (IOException e) {
+			e.printStackTrace();
+			stop();
+		}
+	}
+
+	protected void writeCheckpoint() throws IOException {
+		out.writeByte(CHECKPOINT);
+		out.writeInt(g.turn);
+		out.writeLong(hash(g));
+		out.flush();
+	}
+
+	/** Ends the recording with a checkpoint, unless it's already stopped. */
+	public void stop() {
+		if (stopped) { return; }
+		stopped = true;
+		try {
+			writeCheckpoint();
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Plays back the recording in the given file on the given game, which should have the rules
+	 * the recording was made with, and reports how it went and how long it took.
+	 * @return Whether the game played out as recorded, matching every checkpoint.
+	*/
+	public static boolean replay(Minigame g, File file) throws Exception {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file), 1 << 16), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a recording.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unknown recording version " + version + ".");
+			}
+			byte[] ruleHash = new byte[in.readInt()];
+			in.readFully(ruleHash);
+			if (!Arrays.equals(ruleHash, RuleLoader.hash(g.ruleLoader.readFiles()))) {
+				System.err.println("The rules have changed since " + file + " was recorded, so " +
+						"it may not play out the same.");
+			}
+			g.loadSnapshot(Snapshot.readBody(in, file.toString()), file.toString());
+			g.doLightCalculations();
+
+			int startTurn = g.turn;
+			int keys = 0;
+			int checkpoints = 0;
+			long start = System.nanoTime();
+			while (true) {
+				int kind;
+				try {
+					kind = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				int turn = in.readInt();
+				if (kind == KEY) {
+					int key = in.readInt();
+					int turns = in.readInt();
+					if (g.turn != turn) {
+						System.err.println("The game got to turn " + g.turn + " by the time " +
+								"a key was pressed in turn " + turn + ".");
+						return false;
+					}
+					if (key == KeyEvent.VK_F) {
+						g.fastForward(turns);
+					} else {
+						g.handleKey(key);
+					}
+					keys++;
+				} else if (kind == CHECKPOINT) {
+					long hash = in.readLong();
+					if (g.turn != turn || hash(g) != hash) {
+						System.err.println("The game is different from the recording in turn " +
+								turn + ".");
+						return false;
+					}
+					checkpoints++;
+				} else {
+					throw new IOException("Unknown record in " + file + ".");
+				}
+			}
+			long time = System.nanoTime() - start;
+			int turns = g.turn - startTurn;
+			System.out.println("Played back " + keys + " keys over " + turns + " turns in " +
+					time / 1000000 + " ms, " +
+					String.format("%.3f", g.tickStats.getAverageTurnMillis()) + " ms per turn. " +
+					"All " + checkpoints + " checkpoints matched.");
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+}
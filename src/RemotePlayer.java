@@ -0,0 +1,67 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A player connected to a Server: their avatar's state, which the server swaps into the game
+ * while it handles their moves, and their connection, with the keys they've sent that are yet to
+ * be handled and what's yet to be sent to them.
+*/
+public class RemotePlayer {
+	public final SocketChannel channel;
+	// The avatar's state, as in Minigame.
+	protected int playerX, playerY;
+	protected int carriedItem = Minigame.NOTHING;
+	protected int carriedAge;
+	protected int carriedLight, carriedLightX, carriedLightY;
+	protected boolean wantToDrop;
+	protected int useTargetZ = Minigame.PLAYER_LAYER;
+	protected String action;
+	protected boolean transformDone;
+	/** The keys received and not yet handled. */
+	protected final ArrayDeque<Integer> keys = new ArrayDeque<Integer>();
+	/** What's waiting to be sent, in the order it's to be sent. */
+	protected final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+	/** How many bytes are waiting to be sent. */
+	protected long outputBytes;
+	/** Where the top left of the view the player was last sent is on the map. */
+	protected int sentLeft, sentTop;
+	/**
+	 * The types on each layer and the light levels of the tiles the player was last sent, which
+	 * the next view is sent as changes to, or null if they've been sent nothing yet. Each tile in
+	 * view has its own slot, as by Server.slot(), so nothing moves when the view does.
+	*/
+	protected int[][] sentTypes;
+	protected byte[] sentLevels;
+	/** The text and colour of the status bar the player was last sent. */
+	protected String sentStatus;
+	protected Color sentStatusColor;
+	/** The type colours the player was last sent, so the types are sent again if they change. */
+	protected Color[] sentTypeColors;
+
+	public RemotePlayer(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/** Adds the given message to what's waiting to be sent. */
+	public void send(ByteBuffer message) {
+		output.add(message);
+		outputBytes += message.remaining();
+	}
+
+	/**
+	 * Sends as much of what's waiting as the connection takes without blocking.
+	 * @return Whether everything has been sent.
+	*/
+	public boolean flush() throws IOException {
+		while (!output.isEmpty()) {
+			ByteBuffer message = output.peek();
+			outputBytes -= channel.write(message);
+			if (message.hasRemaining()) { return false; }
+			output.poll();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,337 @@
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Draws views. Drawing a frame makes no new objects once the caches are filled: the shades of
+ * each type's colour are worked out once for LIGHT_LEVELS light levels, each type's name is drawn
+ * once into an image that's then copied onto the screen, and the status bar is only drawn again
+ * when its text changes. The caches are thrown away when the view's colours and names change.
+ * The tiles are drawn into an image of the last frame, which is then copied onto the screen. For
+ * the next view, that image is shifted by however far the view has scrolled, and only the tiles
+ * that look different from last time, or have just scrolled into view, are drawn again.
+*/
+public class Renderer {
+	/** How many light levels the shades of the types' colours are worked out for. */
+	public static final int LIGHT_LEVELS = 64;
+	/** The colour of the screen where it's off the map. */
+	public static final Color BACKGROUND = Color.BLACK;
+
+	/** The colours and names the caches were filled from. */
+	protected Color[] typeColors;
+	protected String[] typeNames;
+	/** The shades of each type's colour, by light level, or null if not needed yet. */
+	protected Color[][] shades;
+	/** The images of each type's name, or null if not needed yet. */
+	protected BufferedImage[] names;
+	/** How far above the top of a tile its name image goes. */
+	protected int nameAscent;
+	/** How many tiles to the right of, above and below its own tile a name image can reach. */
+	protected int nameRight, nameUp, nameDown;
+	/** The status bar as last drawn, with the text and colour it shows. */
+	protected BufferedImage statusBar;
+	protected String status;
+	protected Color statusColor;
+	/** The tiles of the last frame, and the view they show, or null if there's none yet. */
+	protected BufferedImage frame;
+	protected View last;
+	/** Which tiles of the frame have to be drawn again, as y * width + x. */
+	protected boolean[] redraw;
+
+	/** Draws the given view. */
+	public void draw(Graphics2D g, View v) {
+		int ts = Minigame.TILE_SIZE;
+		boolean full = last == null;
+		if (v.typeColors != typeColors || v.typeNames != typeNames) {
+			setTypes(g, v.typeColors, v.typeNames);
+			full = true;
+		}
+		if (frame == null || frame.getWidth() != v.width * ts ||
+			frame.getHeight() != v.height * ts)
+		{
+			frame = g.getDeviceConfiguration().createCompatibleImage(v.width * ts,
+					v.height * ts);
+			redraw = new boolean[v.width * v.height];
+			full = true;
+		}
+		Graphics2D fg = frame.createGraphics();
+		try {
+			if (full || !drawChanges(fg, v)) {
+				drawAll(fg, v);
+			}
+		} finally {
+			fg.dispose();
+		}
+		last = v;
+		g.drawImage(frame, 0, 0, null);
+		g.drawImage(statusBar(g, v), 0, v.height * ts, null);
+	}
+
+	/** Throws away the caches, and works out how far the names of the given types reach. */
+	protected void setTypes(Graphics2D g, Color[] typeColors, String[] typeNames) {
+		this.typeColors = typeColors;
+		this.typeNames = typeNames;
+		shades = new Color[typeColors.length][];
+		names = new BufferedImage[typeNames.length];
+		int ts = Minigame.TILE_SIZE;
+		FontMetrics fm = g.getFontMetrics(Minigame.NAME_FONT);
+		nameAscent = fm.getAscent();
+		int width = 1;
+		int lines = 1;
+		for (String name : typeNames) {
+			if (name == null) { continue; }
+			String[] bits = name.split(" ");
+			for (String bit : bits) {
+				width = Math.max(width, fm.stringWidth(bit));
+			}
+			lines = Math.max(lines, bits.length);
+		}
+		nameRight = (width - 1) / ts;
+		nameUp = Math.max(0, nameAscent - 3 + ts - 1) / ts;
+		nameDown = Math.max(0, 3 - nameAscent + nameHeight(fm, lines) - 1) / ts;
+	}
+
+	/** Draws all the tiles of the given view. */
+	protected void drawAll(Graphics2D g, View v) {
+		int ts = Minigame.TILE_SIZE;
+		g.setColor(BACKGROUND);
+		g.fillRect(0, 0, v.width * ts, v.height * ts);
+
+		// Draw contents of tiles.
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			for (int y = 0; y < v.height; y++) {
+				for (int x = 0; x < v.width; x++) {
+					drawContents(g, v, x, y, z);
+				}
+			}
+		}
+
+		drawPlayer(g, v);
+
+		// Draw item names, only for the layer the player is on.
+		for (int y = 0; y < v.height; y++) {
+			for (int x = 0; x < v.width; x++) {
+				drawName(g, v, x, y);
+			}
+		}
+	}
+
+	/**
+	 * Draws the tiles of the given view that differ from the last one drawn, after shifting the
+	 * frame by how far the view has scrolled.
+	 * @return False if the whole view has to be drawn instead.
+	*/
+	protected boolean drawChanges(Graphics2D g, View v) {
+		int ts = Minigame.TILE_SIZE;
+		int w = v.width;
+		int h = v.height;
+		if (last.width != w || last.height != h) { return false; }
+		int sx = v.left - last.left;
+		int sy = v.top - last.top;
+		if (Math.abs(sx) >= w || Math.abs(sy) >= h) { return false; }
+		Arrays.fill(redraw, false);
+		if (sx != 0 || sy != 0) {
+			g.copyArea(0, 0, w * ts, h * ts, -sx * ts, -sy * ts);
+			// The player indicator stays in the middle.
+			mark(v, w / 2, h / 2);
+			mark(v, w / 2 - sx, h / 2 - sy);
+			// The names of tiles that scrolled out of view are still drawn over the ones left.
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if (x - sx < 0 || x - sx >= w || y - sy < 0 || y - sy >= h) {
+						markName(v, x - sx, y - sy);
+					}
+				}
+			}
+		}
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int ox = x + sx;
+				int oy = y + sy;
+				int i = y * w + x;
+				if (ox < 0 || ox >= w || oy < 0 || oy >= h ||
+					v.types[Minigame.PLAYER_LAYER][i] !=
+							last.types[Minigame.PLAYER_LAYER][oy * w + ox])
+				{
+					mark(v, x, y);
+					markName(v, x, y);
+				} else if (differs(v, i, oy * w + ox)) {
+					mark(v, x, y);
+				}
+			}
+		}
+
+		// Draw the contents of the tiles, and then all the names that reach into them.
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (!redraw[y * w + x]) { continue; }
+				g.setColor(BACKGROUND);
+				g.fillRect(x * ts, y * ts, ts, ts);
+				for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+					drawContents(g, v, x, y, z);
+				}
+				if (x == w / 2 && y == h / 2) {
+					drawPlayer(g, v);
+				}
+			}
+		}
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (reachesRedraw(v, x, y)) {
+					drawName(g, v, x, y);
+				}
+			}
+		}
+		return true;
+	}
+
+	/** @return Whether the tile at index i in the view looks different from the last one's at j. */
+	protected boolean differs(View v, int i, int j) {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			if (v.types[z][i] != last.types[z][j]) { return true; }
+		}
+		return level(v.light[i]) != level(last.light[j]);
+	}
+
+	/** Marks the given tile to be drawn again, if it's in view. */
+	protected void mark(View v, int x, int y) {
+		if (x >= 0 && x < v.width && y >= 0 && y < v.height) {
+			redraw[y * v.width + x] = true;
+		}
+	}
+
+	/**
+	 * Marks the tiles the name of the given tile can reach to be drawn again. Names are drawn
+	 * in solid black, so drawing one again over itself changes nothing, and it can be drawn
+	 * again whole over the tiles it reaches that didn't change.
+	*/
+	protected void markName(View v, int x, int y) {
+		for (int ty = y - nameUp; ty <= y + nameDown; ty++) {
+			for (int tx = x; tx <= x + nameRight; tx++) {
+				mark(v, tx, ty);
+			}
+		}
+	}
+
+	/** @return Whether the name of the given tile reaches a tile marked to be drawn again. */
+	protected boolean reachesRedraw(View v, int x, int y) {
+		for (int ty = Math.max(0, y - nameUp); ty <= Math.min(v.height - 1, y + nameDown); ty++) {
+			for (int tx = x; tx <= Math.min(v.width - 1, x + nameRight); tx++) {
+				if (redraw[ty * v.width + tx]) { return true; }
+			}
+		}
+		return false;
+	}
+
+	/** Draws what's on the given layer of the given tile. */
+	protected void drawContents(Graphics2D g, View v, int x, int y, int z) {
+		int type = v.types[z][y * v.width + x];
+		if (type == Minigame.NOTHING) { return; }
+		int ts = Minigame.TILE_SIZE;
+		g.setColor(shade(type, v.light[y * v.width + x]));
+		if (z == Minigame.GROUND_LAYER) {
+			// Render the ground layer as tiles.
+			g.fillRect(x * ts, y * ts, ts, ts);
+		} else {
+			// Render items not at ground layer as ovals.
+			g.fillOval(x * ts + ts / 4, y * ts + ts / 4, ts / 2, ts / 2);
+		}
+	}
+
+	/** Draws the indicator for where the player is, a white circle smaller than the tile size. */
+	protected void drawPlayer(Graphics2D g, View v) {
+		int ts = Minigame.TILE_SIZE;
+		g.setColor(Color.WHITE);
+		g.fillOval((v.width / 2) * ts + ts / 4 + 4, (v.height / 2) * ts + ts / 4 + 4, ts / 2 - 8,
+				ts / 2 - 8);
+	}
+
+	/** Draws the name of the item on the given tile, if there is one. */
+	protected void drawName(Graphics2D g, View v, int x, int y) {
+		int type = v.types[Minigame.PLAYER_LAYER][y * v.width + x];
+		if (type == Minigame.NOTHING) { return; }
+		int ts = Minigame.TILE_SIZE;
+		g.drawImage(name(g, type), x * ts, y * ts + 3 - nameAscent, null);
+	}
+
+	/** @return The light level the given amount of light is drawn at. */
+	protected static int level(double l) {
+		int level = (int) (l * (LIGHT_LEVELS - 1) + 0.5);
+		return Math.max(0, Math.min(LIGHT_LEVELS - 1, level));
+	}
+
+	/** @return The shade of the given type's colour at the given light level. */
+	protected Color shade(int type, double l) {
+		if (shades[type] == null) {
+			Color c = typeColors[type];
+			shades[type] = new Color[LIGHT_LEVELS];
+			for (int i = 0; i < LIGHT_LEVELS - 1; i++) {
+				double s = i / (double) (LIGHT_LEVELS - 1);
+				shades[type][i] = new Color((int) (c.getRed() * s), (int) (c.getGreen() * s),
+						(int) (c.getBlue() * s));
+			}
+			shades[type][LIGHT_LEVELS - 1] = c;
+		}
+		return shades[type][level(l)];
+	}
+
+	/** @return The height of a name image with the given number of lines. */
+	protected static int nameHeight(FontMetrics fm, int lines) {
+		return fm.getAscent() + fm.getDescent() + (lines - 1) * 11;
+	}
+
+	/**
+	 * @return The image of the given type's name, split up into words to better fit it into a
+	 * little square.
+	*/
+	protected BufferedImage name(Graphics2D g, int type) {
+		if (names[type] == null) {
+			FontMetrics fm = g.getFontMetrics(Minigame.NAME_FONT);
+			String[] bits = typeNames[type].split(" ");
+			int width = 1;
+			for (String bit : bits) {
+				width = Math.max(width, fm.stringWidth(bit));
+			}
+			BufferedImage img = g.getDeviceConfiguration().createCompatibleImage(width,
+					nameHeight(fm, bits.length), Transparency.BITMASK);
+			Graphics2D ig = img.createGraphics();
+			ig.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+					RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+			ig.setColor(Color.BLACK);
+			ig.setFont(Minigame.NAME_FONT);
+			for (int i = 0; i < bits.length; i++) {
+				ig.drawString(bits[i], 0, nameAscent + i * 11);
+			}
+			ig.dispose();
+			names[type] = img;
+		}
+		return names[type];
+	}
+
+	/** @return The image of the view's status bar. */
+	protected BufferedImage statusBar(Graphics2D g, View v) {
+		int width = v.width * Minigame.TILE_SIZE;
+		if (statusBar == null || statusBar.getWidth() != width || !v.status.equals(status) ||
+			!v.statusColor.equals(statusColor))
+		{
+			status = v.status;
+			statusColor = v.statusColor;
+			if (statusBar == null || statusBar.getWidth() != width) {
+				statusBar = g.getDeviceConfiguration().createCompatibleImage(width,
+						Minigame.STATUS_BAR_HEIGHT);
+			}
+			Graphics2D sg = statusBar.createGraphics();
+			sg.setColor(statusColor);
+			sg.fillRect(0, 0, width, Minigame.STATUS_BAR_HEIGHT);
+			sg.setColor(Color.BLACK);
+			sg.setFont(Minigame.STATUS_FONT);
+			sg.drawString(status, 10, Minigame.STATUS_BAR_HEIGHT - 10);
+			sg.dispose();
+		}
+		return statusBar;
+	}
+}
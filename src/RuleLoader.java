@@ -0,0 +1,352 @@
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Loads a game's rules from the rule files in its folder, or from the rule cache, which holds the
+ * rules as loaded, keyed by a hash of the rule files, so a game whose rules haven't changed
+ * starts without parsing them. The rules can be loaded again while the game is running, and
+ * the rule files watched so that happens whenever they're changed.
+*/
+public class RuleLoader {
+	/** The files the rules are loaded from, in the order they're loaded in. */
+	public static final String[] RULE_FILES = { "items.csv", "transformations.csv",
+			"behaviours.csv" };
+	/** The file the loaded rules are cached in, for as long as the rule files stay the same. */
+	public static final String RULE_CACHE_FILE = "rules.cache";
+	/** The first four bytes of the rule cache, "SQRC". */
+	public static final int RULE_CACHE_MAGIC = 0x53515243;
+	/** The version of the rule cache format. */
+	public static final int RULE_CACHE_VERSION = 1;
+	/**
+	 * How long the rule watcher waits for the rule files to stop changing before reloading them,
+	 * in milliseconds, since editors often write a file in more than one go.
+	*/
+	public static final long RULE_RELOAD_DELAY = 200;
+
+	/** The game the rules are loaded into. */
+	protected final Minigame g;
+
+	public RuleLoader(Minigame g) {
+		this.g = g;
+	}
+
+	/**
+	 * Loads the game rules from the CSV (ish) rule files, or from the rule cache if the files are
+	 * still the same as when it was written. Lines with problems are left out, and all the
+	 * problems are reported with their line numbers.
+	*/
+	public void load() {
+		try {
+			byte[][] files = readFiles();
+			byte[] hash = hash(files);
+			File cache = new File(g.getGameFolder(), RULE_CACHE_FILE);
+			if (readCache(cache, hash)) { return; }
+
+			ArrayList<String> errors = new ArrayList<String>();
+			g.parseRules(files, errors, null, Minigame.FIRST_SAFE_ID);
+			for (String error : errors) {
+				System.err.println(error);
+			}
+			// Only rules without problems are cached, so the problems are reported every time.
+			if (errors.isEmpty()) {
+				writeCache(cache, hash);
+			}
+		} catch (Exception e) {
+			System.err.println("Could not load the rules.");
+			e.printStackTrace();
+		}
+	}
+
+	/** @return The contents of the rule files. */
+	public byte[][] readFiles() throws Exception {
+		byte[][] files = new byte[RULE_FILES.length][];
+		for (int i = 0; i < RULE_FILES.length; i++) {
+			files[i] = Files.readAllBytes(new File(g.getGameFolder(), RULE_FILES[i]).toPath());
+		}
+		return files;
+	}
+
+	/** @return The hash the rule cache is keyed by: the length and CRC32 of each rule file. */
+	public static byte[] hash(byte[][] files) {
+		ByteBuffer hash = ByteBuffer.allocate(files.length * 12);
+		for (byte[] file : files) {
+			CRC32 crc = new CRC32();
+			crc.update(file);
+			hash.putInt(file.length).putLong(crc.getValue());
+		}
+		return hash.array();
+	}
+
+	/**
+	 * Writes the loaded rules to the rule cache, along with the hash of the rule files they were
+	 * loaded from.
+	*/
+	protected void writeCache(File f, byte[] hash) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(RULE_CACHE_MAGIC);
+			out.writeInt(RULE_CACHE_VERSION);
+			out.write(hash);
+			out.writeInt(g.numberOfTypes);
+			for (int t = 0; t < g.numberOfTypes; t++) {
+				writeString(out, g.typeNames[t]);
+				writeString(out, g.verboseTypeNames[t]);
+				out.writeBoolean(g.typeColors[t] != null);
+				out.writeInt(g.typeColors[t] == null ? 0 : g.typeColors[t].getRGB());
+				out.writeInt(g.supertype[t]);
+				out.writeBoolean(g.typeWanders[t]);
+				out.writeInt(g.changeType[t]);
+				out.writeInt(g.changeAge[t]);
+				out.writeBoolean(g.typeSeeks[t]);
+				out.writeInt(g.typeLight[t]);
+			}
+			g.useRules.write(out);
+			out.writeInt(g.useTexts.size());
+			for (String text : g.useTexts) {
+				writeString(out, text);
+			}
+			g.interactionRules.write(out);
+			g.soughtTypes.write(out);
+			out.close();
+			File temp = new File(f.getPath() + ".tmp");
+			Files.write(temp.toPath(), bytes.toByteArray());
+			Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return s;
+	}
+
+	/**
+	 * Loads the rules from the rule cache, if it was written from rule files with the given hash.
+	 * Nothing is changed unless the whole cache could be read.
+	 * @return Whether the rules were loaded.
+	*/
+	protected boolean readCache(File f, byte[] hash) {
+		if (!f.exists()) { return false; }
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+			if (in.getInt() != RULE_CACHE_MAGIC || in.getInt() != RULE_CACHE_VERSION) {
+				return false;
+			}
+			byte[] cachedHash = new byte[hash.length];
+			in.get(cachedHash);
+			if (!Arrays.equals(cachedHash, hash)) { return false; }
+			int types = in.getInt();
+			int capacity = Math.max(types, Minigame.INITIAL_TYPE_CAPACITY);
+			String[] names = new String[capacity];
+			String[] verboseNames = new String[capacity];
+			Color[] colors = new Color[capacity];
+			int[] supertypes = new int[capacity];
+			Arrays.fill(supertypes, Minigame.ANYTHING);
+			boolean[] wanders = new boolean[capacity];
+			int[] changeTypes = new int[capacity];
+			int[] changeAges = new int[capacity];
+			boolean[] seeks = new boolean[capacity];
+			int[] lights = new int[capacity];
+			for (int t = 0; t < types; t++) {
+				names[t] = readString(in);
+				verboseNames[t] = readString(in);
+				boolean coloured = in.get() != 0;
+				int rgb = in.getInt();
+				colors[t] = coloured ? new Color(rgb) : null;
+				supertypes[t] = in.getInt();
+				wanders[t] = in.get() != 0;
+				changeTypes[t] = in.getInt();
+				changeAges[t] = in.getInt();
+				seeks[t] = in.get() != 0;
+				lights[t] = in.getInt();
+			}
+			RuleTable use = RuleTable.read(in);
+			int texts = in.getInt();
+			ArrayList<String> uses = new ArrayList<String>(texts);
+			for (int i = 0; i < texts; i++) {
+				uses.add(readString(in));
+			}
+			RuleTable interactions = RuleTable.read(in);
+			RuleTable sought = RuleTable.read(in);
+
+			g.numberOfTypes = types;
+			g.typeNames = names;
+			g.verboseTypeNames = verboseNames;
+			g.typeColors = colors;
+			g.supertype = supertypes;
+			g.typeWanders = wanders;
+			g.changeType = changeTypes;
+			g.changeAge = changeAges;
+			g.typeSeeks = seeks;
+			g.typeLight = lights;
+			g.useRules = use;
+			g.useTexts = uses;
+			g.interactionRules = interactions;
+			g.soughtTypes = sought;
+			g.nameToType.clear();
+			for (int t = 0; t < types; t++) {
+				g.nameToType.put(g.typeNames[t], t);
+			}
+			return true;
+		} catch (Exception e) {
+			System.err.println("Could not read " + f + ", loading the rule files instead.");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Loads the rules again from the rule files, keeping the world as it is. Types keep their
+	 * numbers, new types are numbered after the old ones and types that were taken out of
+	 * items.csv stay around with no rules, so the tiles on the map and the journal still mean the
+	 * same things. Only the tiles of types whose rules changed are looked at again. If the files
+	 * have problems, the old rules are kept. Call this on the simulation thread, between turns.
+	 * @return Whether the new rules were loaded.
+	*/
+	public boolean reload() {
+		int oldNumberOfTypes = g.numberOfTypes;
+		String[] oldTypeNames = g.typeNames;
+		String[] oldVerboseTypeNames = g.verboseTypeNames;
+		Color[] oldTypeColors = g.typeColors;
+		boolean[] oldTypeWanders = g.typeWanders;
+		int[] oldChangeType = g.changeType;
+		int[] oldChangeAge = g.changeAge;
+		boolean[] oldTypeSeeks = g.typeSeeks;
+		int[] oldTypeLight = g.typeLight;
+		int[] oldSupertype = g.supertype;
+		HashMap<String, Integer> oldNameToType = g.nameToType;
+		RuleTable oldUseRules = g.useRules;
+		ArrayList<String> oldUseTexts = g.useTexts;
+		RuleTable oldInteractionRules = g.interactionRules;
+		RuleTable oldSoughtTypes = g.soughtTypes;
+
+		ArrayList<String> errors = new ArrayList<String>();
+		try {
+			byte[][] files = readFiles();
+			clear(oldNumberOfTypes);
+			g.initBaseRules();
+			g.parseRules(files, errors, oldNameToType, oldNumberOfTypes);
+		} catch (Exception e) {
+			e.printStackTrace();
+			errors.add(e.toString());
+		}
+		if (!errors.isEmpty()) {
+			for (String error : errors) {
+				System.err.println(error);
+			}
+			g.numberOfTypes = oldNumberOfTypes;
+			g.typeNames = oldTypeNames;
+			g.verboseTypeNames = oldVerboseTypeNames;
+			g.typeColors = oldTypeColors;
+			g.typeWanders = oldTypeWanders;
+			g.changeType = oldChangeType;
+			g.changeAge = oldChangeAge;
+			g.typeSeeks = oldTypeSeeks;
+			g.typeLight = oldTypeLight;
+			g.supertype = oldSupertype;
+			g.nameToType = oldNameToType;
+			g.useRules = oldUseRules;
+			g.useTexts = oldUseTexts;
+			g.interactionRules = oldInteractionRules;
+			g.soughtTypes = oldSoughtTypes;
+			g.action = "The rules have problems, so the old ones are kept.";
+			return false;
+		}
+
+		// Types taken out of the rules may still be on the map, so they stay, doing nothing.
+		g.numberOfTypes = Math.max(g.numberOfTypes, oldNumberOfTypes);
+		for (int t = Minigame.FIRST_SAFE_ID; t < oldNumberOfTypes; t++) {
+			if (g.typeNames[t] != null) { continue; }
+			g.typeNames[t] = oldTypeNames[t];
+			g.verboseTypeNames[t] = oldVerboseTypeNames[t];
+			g.typeColors[t] = oldTypeColors[t];
+			g.nameToType.put(g.typeNames[t], t);
+		}
+		g.compileRules();
+		g.world.setTypeRules(g.rules, g.typeLight);
+		g.doLightCalculations();
+		g.action = "Reloaded the rules.";
+		return true;
+	}
+
+	/** Replaces the rules with empty ones, with room for the given number of types. */
+	protected void clear(int types) {
+		int capacity = Math.max(Minigame.INITIAL_TYPE_CAPACITY, types);
+		g.typeNames = new String[capacity];
+		g.verboseTypeNames = new String[capacity];
+		g.typeColors = new Color[capacity];
+		g.typeWanders = new boolean[capacity];
+		g.changeType = new int[capacity];
+		g.changeAge = new int[capacity];
+		g.typeSeeks = new boolean[capacity];
+		g.typeLight = new int[capacity];
+		g.supertype = new int[capacity];
+		g.nameToType = new HashMap<String, Integer>();
+		g.useRules = new RuleTable(3);
+		g.useTexts = new ArrayList<String>();
+		g.interactionRules = new RuleTable(3);
+		g.soughtTypes = new RuleTable(1);
+	}
+
+	/**
+	 * Watches the game folder for changes to the rule files, and has the simulation thread load
+	 * them again once they stop changing.
+	*/
+	public void watch() {
+		try {
+			WatchService watcher = FileSystems.getDefault().newWatchService();
+			g.getGameFolder().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			List<String> ruleFiles = Arrays.asList(RULE_FILES);
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				// Gather up the changes until the files have been left alone for a bit.
+				while (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						changed |= ruleFiles.contains(String.valueOf(event.context()));
+					}
+					key.reset();
+					key = watcher.poll(RULE_RELOAD_DELAY, TimeUnit.MILLISECONDS);
+				}
+				if (changed) {
+					g.input.add(Minigame.RELOAD_RULES);
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Exception e) {
+			System.err.println("Could not watch the rule files for changes.");
+			e.printStackTrace();
+		}
+	}
+}
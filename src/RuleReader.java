@@ -0,0 +1,168 @@
+import java.util.List;
+
+/**
+ * Reads the lines of a rule file one at a time, splitting each into comma-separated fields with
+ * the spaces around them left out. Blank lines and lines starting with # are skipped. The lines
+ * are split where they are in the characters of the file, in one pass, and a field only becomes a
+ * String when it's asked for, so reading a big rule file makes few objects.
+ * Problems with a line are added to a list of errors along with the file name and line number,
+ * so all the problems in a file can be reported at once.
+*/
+public class RuleReader {
+	/** The characters of the file, up to length. */
+	protected final char[] text;
+	protected final int length;
+	/** The name of the file, for error messages. */
+	protected final String file;
+	/** Where problems are added to. */
+	protected final List<String> errors;
+	/** Where the next line starts. */
+	protected int pos;
+	/** Where the current line starts and ends. */
+	protected int lineStart, lineEnd;
+	/** The number of the current line, counting from 1. */
+	protected int lineNumber;
+	/** The start and end of each field of the current line, as split by split(). */
+	protected int[] starts = new int[8];
+	protected int[] ends = new int[8];
+	protected int fields;
+
+	public RuleReader(char[] text, int length, String file, List<String> errors) {
+		this.text = text;
+		this.length = length;
+		this.file = file;
+		this.errors = errors;
+	}
+
+	/**
+	 * Moves on to the next line that isn't blank or a comment, and splits it into as many fields
+	 * as it has.
+	 * @return False if there are no more lines.
+	*/
+	public boolean next() {
+		while (pos < length) {
+			lineNumber++;
+			lineStart = pos;
+			while (pos < length && text[pos] != '\n') {
+				pos++;
+			}
+			lineEnd = pos;
+			pos++;
+			if (lineEnd > lineStart && text[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+			int start = skipSpaces(lineStart, lineEnd);
+			if (start == lineEnd || text[start] == '#') { continue; }
+			split(Integer.MAX_VALUE);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Splits the current line into at most the given number of fields. The last field holds the
+	 * rest of the line, commas and all.
+	 * @return The number of fields.
+	*/
+	public int split(int max) {
+		fields = 0;
+		int start = lineStart;
+		while (true) {
+			if (fields == starts.length) {
+				int[] longer = new int[fields * 2];
+				System.arraycopy(starts, 0, longer, 0, fields);
+				starts = longer;
+				longer = new int[fields * 2];
+				System.arraycopy(ends, 0, longer, 0, fields);
+				ends = longer;
+			}
+			int end = start;
+			if (fields < max - 1) {
+				while (end < lineEnd && text[end] != ',') {
+					end++;
+				}
+			} else {
+				end = lineEnd;
+			}
+			starts[fields] = skipSpaces(start, end);
+			int e = end;
+			while (e > starts[fields] && text[e - 1] <= ' ') {
+				e--;
+			}
+			ends[fields] = e;
+			fields++;
+			if (end == lineEnd) { return fields; }
+			start = end + 1;
+		}
+	}
+
+	protected int skipSpaces(int from, int to) {
+		while (from < to && text[from] <= ' ') {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * Splits the current line into at most the given number of fields, and checks it has at least
+	 * the given smaller number.
+	 * @param format The fields expected, for the error message.
+	*/
+	public void split(int min, int max, String format) {
+		if (split(max) < min) {
+			throw new IllegalArgumentException("Expected " + format + ".");
+		}
+	}
+
+	/** @return The number of fields of the current line. */
+	public int fields() {
+		return fields;
+	}
+
+	/** @return The given field of the current line. */
+	public String field(int i) {
+		return new String(text, starts[i], ends[i] - starts[i]);
+	}
+
+	/** @return Whether the given field of the current line is the given word. */
+	public boolean is(int i, String word) {
+		if (ends[i] - starts[i] != word.length()) { return false; }
+		for (int j = 0; j < word.length(); j++) {
+			if (text[starts[i] + j] != word.charAt(j)) { return false; }
+		}
+		return true;
+	}
+
+	/** @return The given field of the current line as a number. */
+	public int number(int i) {
+		int n = 0;
+		int pos = starts[i];
+		boolean negative = pos < ends[i] && text[pos] == '-';
+		if (negative) {
+			pos++;
+		}
+		if (pos == ends[i]) { throw new NumberFormatException(notANumber(i)); }
+		for (; pos < ends[i]; pos++) {
+			char c = text[pos];
+			if (c < '0' || c > '9' || n > (Integer.MAX_VALUE - (c - '0')) / 10) {
+				throw new NumberFormatException(notANumber(i));
+			}
+			n = n * 10 + c - '0';
+		}
+		return negative ? -n : n;
+	}
+
+	protected String notANumber(int i) {
+		return "\"" + field(i) + "\" is not a number.";
+	}
+
+	/** @return The number of the current line, counting from 1. */
+	public int lineNumber() {
+		return lineNumber;
+	}
+
+	/** Adds a problem with the current line to the errors. */
+	public void error(String message) {
+		errors.add(file + ":" + lineNumber + ": " + message);
+	}
+}
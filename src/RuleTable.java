@@ -0,0 +1,170 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A sparse table of rules keyed by a pair of item types, such as a carried item and a target item.
+ * Each rule holds a fixed number of int columns. The table is an open-addressed hash map with
+ * linear probing, with both types packed into a single long key, so memory use is proportional
+ * to the number of rules rather than the square of the number of types.
+ * Rules are addressed by their slot, which stays valid until the next rule is added. Once all
+ * rules are in, the table can be read from any number of threads.
+*/
+public class RuleTable {
+	/** Key value of an unused slot. Types are never negative, so no real key looks like this. */
+	public static final long EMPTY = -1L;
+	/** Number of slots a new table starts out with. Must be a power of two. */
+	public static final int INITIAL_CAPACITY = 16;
+
+	/** The number of int columns of each rule. */
+	protected final int columns;
+	/** The packed type pair of each slot, or EMPTY. */
+	protected long[] keys;
+	/** The columns of each slot, one after the other. */
+	protected int[] values;
+	/** The number of rules in the table. */
+	protected int size;
+
+	public RuleTable(int columns) {
+		this.columns = columns;
+		keys = new long[INITIAL_CAPACITY];
+		Arrays.fill(keys, EMPTY);
+		values = new int[INITIAL_CAPACITY * columns];
+	}
+
+	/** @return The key for the given pair of types. */
+	public static long key(int a, int b) {
+		return ((long) a << 32) | (b & 0xFFFFFFFFL);
+	}
+
+	/** @return The preferred slot of the given key in a table of the given capacity. */
+	protected static int hash(long key, int capacity) {
+		// Fibonacci hashing: the top bits of the product are well mixed.
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (capacity - 1);
+	}
+
+	/** @return The slot of the rule for the given pair of types, or -1 if there isn't one. */
+	public int find(int a, int b) {
+		return find(key(a, b));
+	}
+
+	/** @return The slot of the rule with the given key, or -1 if there isn't one. */
+	protected int find(long key) {
+		int mask = keys.length - 1;
+		for (int slot = hash(key, keys.length);; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) { return slot; }
+			if (keys[slot] == EMPTY) { return -1; }
+		}
+	}
+
+	/** @return Whether there is a rule for the given pair of types. */
+	public boolean contains(int a, int b) {
+		return find(a, b) != -1;
+	}
+
+	/** @return The given column of the rule in the given slot. */
+	public int get(int slot, int column) {
+		return values[slot * columns + column];
+	}
+
+	/** Sets the given column of the rule in the given slot. */
+	public void set(int slot, int column, int value) {
+		values[slot * columns + column] = value;
+	}
+
+	/**
+	 * Adds a rule for the given pair of types, unless there already is one.
+	 * @return The slot of the rule.
+	*/
+	public int put(int a, int b) {
+		// Keep the table at most half full so probe sequences stay short.
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		long key = key(a, b);
+		int mask = keys.length - 1;
+		int slot = hash(key, keys.length);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) { return slot; }
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		size++;
+		return slot;
+	}
+
+	/** @return The number of rules in the table. */
+	public int size() {
+		return size;
+	}
+
+	// Iteration. Loop over the slots up to the capacity and skip the ones that aren't used.
+	/** @return The number of slots in the table. */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/** @return Whether the given slot holds a rule. */
+	public boolean used(int slot) {
+		return keys[slot] != EMPTY;
+	}
+
+	/** @return The first type of the rule in the given slot. */
+	public int a(int slot) {
+		return (int) (keys[slot] >> 32);
+	}
+
+	/** @return The second type of the rule in the given slot. */
+	public int b(int slot) {
+		return (int) keys[slot];
+	}
+
+	/** Writes the table out slot by slot, so read() gives back exactly the same table. */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(columns);
+		out.writeInt(keys.length);
+		out.writeInt(size);
+		for (int slot = 0; slot < keys.length; slot++) {
+			out.writeLong(keys[slot]);
+		}
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	/** @return The table written out by write(), read from the given buffer. */
+	public static RuleTable read(ByteBuffer in) throws IOException {
+		RuleTable t = new RuleTable(in.getInt());
+		int capacity = in.getInt();
+		if (capacity < INITIAL_CAPACITY || Integer.bitCount(capacity) != 1) {
+			throw new IOException("Bad rule table capacity " + capacity + ".");
+		}
+		t.size = in.getInt();
+		t.keys = new long[capacity];
+		in.asLongBuffer().get(t.keys);
+		in.position(in.position() + capacity * 8);
+		t.values = new int[capacity * t.columns];
+		in.asIntBuffer().get(t.values);
+		in.position(in.position() + t.values.length * 4);
+		return t;
+	}
+
+	protected void resize(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity * columns];
+		int mask = capacity - 1;
+		for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+			if (oldKeys[oldSlot] == EMPTY) { continue; }
+			int slot = hash(oldKeys[oldSlot], capacity);
+			while (keys[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[oldSlot];
+			System.arraycopy(oldValues, oldSlot * columns, values, slot * columns, columns);
+		}
+	}
+}
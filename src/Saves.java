@@ -0,0 +1,211 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The saves of a game in its folder: the full save, as a Snapshot, the Journal of the changes
+ * made since, and the CSV export. Saves are written out from snapshots of the game, which take
+ * their chunks from copies of the world, on a thread of their own, so the game goes on while
+ * they're written.
+*/
+public class Saves {
+	/** The file the game is saved to. */
+	public static final String SAVE_FILE = "save.dat";
+	/** The file the changes made since the game was last saved in full are appended to. */
+	public static final String JOURNAL_FILE = "save.journal";
+	/** How big the journal can get before it's put into the save, unless the save is bigger. */
+	public static final long COMPACT_BYTES = 1 << 20;
+	/** The file the game is exported to as CSV, which is loaded instead of the save if newer. */
+	public static final String EXPORT_FILE = "save.csv";
+
+	public final File saveFile, journalFile, exportFile;
+	/** Whether saves are compressed, from the soapquest.compressSaves system property. */
+	protected boolean compress = !"false".equals(System.getProperty("soapquest.compressSaves"));
+	/** The thread saves are written out on, created when first needed. */
+	protected ExecutorService thread;
+	/**
+	 * The journal that changes are appended to when the game is saved, or null if the next save
+	 * has to be a full one. Only used on the save thread once the game is loaded.
+	*/
+	protected Journal journal;
+
+	/** Keeps the saves in the given folder. */
+	public Saves(File folder) {
+		saveFile = new File(folder, SAVE_FILE);
+		journalFile = new File(folder, JOURNAL_FILE);
+		exportFile = new File(folder, EXPORT_FILE);
+	}
+
+	/**
+	 * @return Whether there's a save to load, which there isn't if the CSV export is newer, as
+	 * that's how modders edit saves.
+	*/
+	public boolean hasSave() {
+		long saved = Math.max(saveFile.lastModified(), journalFile.lastModified());
+		return saveFile.exists() && (!exportFile.exists() || exportFile.lastModified() <= saved);
+	}
+
+	/**
+	 * @return The game in the save, with the changes in the journal applied, which are appended
+	 * to from here on.
+	*/
+	public Snapshot read() throws Exception {
+		Snapshot save = Snapshot.read(saveFile);
+		journal = Journal.replay(journalFile, save);
+		return save;
+	}
+
+	/**
+	 * Writes out the given snapshot of the game on the save thread, in full or as the changes
+	 * since the last save if there's a journal to add them to, and releases its copy of the
+	 * world once it's written.
+	*/
+	public void save(final Snapshot game, final boolean full) {
+		onSaveThread(new Runnable() {
+			public void run() {
+				try {
+					if (full || journal == null || !journal.matches(game.typeNames)) {
+						writeSave(game);
+					} else {
+						writeChanges(game);
+					}
+				} catch (Exception e) {
+					// Make the next save a full one then.
+					journal = null;
+					e.printStackTrace();
+				} finally {
+					game.copy.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Exports the given snapshot of the game as CSV on the save thread, in the same format as
+	 * map.csv, so it can be read and edited by hand.
+	*/
+	public void export(final Snapshot game) {
+		onSaveThread(new Runnable() {
+			public void run() {
+				try {
+					writeExport(game);
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					game.copy.release();
+				}
+			}
+		});
+	}
+
+	/** Runs the given task on the save thread, after any saves already waiting. */
+	protected void onSaveThread(Runnable task) {
+		if (thread == null) {
+			thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "save");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		thread.execute(task);
+	}
+
+	/** Waits until the saves waiting on the save thread have been written. */
+	public void finish() {
+		if (thread == null) { return; }
+		try {
+			thread.submit(new Runnable() {
+				public void run() {}
+			}).get();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Writes the given copy of the game to the save, and starts a new journal. */
+	protected void writeSave(Snapshot game) throws Exception {
+		journal = null;
+		game.generation = SimRandom.mix(System.nanoTime());
+		game.write(saveFile, compress);
+		journal = Journal.create(journalFile, game.generation, SimRandom.mix(game.generation));
+	}
+
+	/**
+	 * Appends the changes in the given copy of the game to the journal, and puts the journal into
+	 * the save once it's big.
+	*/
+	protected void writeChanges(Snapshot game) throws Exception {
+		WorldCopy copy = game.copy;
+		journal.startBatch(game);
+		for (int i = 0; i < copy.chunksX * copy.chunksY; i++) {
+			Chunk c = copy.chunks[i];
+			if (c == null || copy.unsavedChunks.get(i)) { continue; }
+			// Where much of a chunk changed, it takes less room to save all of it.
+			if (c.unsavedTiles() > Chunk.AREA / 32) {
+				journal.addChunk(i, c);
+				continue;
+			}
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				TileSet unsaved = c.unsaved[z];
+				for (int tile = unsaved.next(0); tile != -1; tile = unsaved.next(tile + 1)) {
+					journal.addTile(z, (c.cy << Chunk.SHIFT) + (tile >> Chunk.SHIFT),
+							(c.cx << Chunk.SHIFT) + (tile & Chunk.MASK), c.type(z, tile),
+							game.turn - c.born(z, tile));
+				}
+			}
+		}
+		BitSet unsavedChunks = copy.unsavedChunks;
+		for (int i = unsavedChunks.nextSetBit(0); i != -1; i = unsavedChunks.nextSetBit(i + 1)) {
+			journal.addChunk(i, copy.chunk(i));
+		}
+		journal.endBatch();
+
+		if (journal.file.length() > Math.max(COMPACT_BYTES, saveFile.length())) {
+			Journal old = journal;
+			journal = null;
+			journal = Journal.compact(saveFile, old.file, compress);
+		}
+	}
+
+	/** Writes the given copy of the game to the CSV export. */
+	protected void writeExport(Snapshot game) throws Exception {
+		PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(exportFile), 1 << 16));
+
+		// Write turn number, map size and random seed.
+		w.println(game.turn + ", " + game.width + ", " + game.height + ", " + game.seed);
+
+		// Write player location.
+		w.println(game.playerX + ", " + game.playerY + ", " +
+				game.typeNames.get(game.carriedItem) + ", " + game.carriedAge);
+
+		// Write location of items. Chunks that were never created only hold defaults.
+		for (int i = 0; i < game.chunksX * game.chunksY; i++) {
+			Chunk c = game.chunk(i);
+			if (c == null) { continue; }
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				for (int tile = 0; tile < Chunk.AREA; tile++) {
+					int x = (c.cx << Chunk.SHIFT) + (tile & Chunk.MASK);
+					int y = (c.cy << Chunk.SHIFT) + (tile >> Chunk.SHIFT);
+					// Skip NOTHING on the player level and GRASS on the ground.
+					if (x < game.width && y < game.height &&
+						!(z == Minigame.PLAYER_LAYER && c.type(z, tile) == Minigame.NOTHING) &&
+						!(z == Minigame.GROUND_LAYER && c.type(z, tile) == Minigame.GRASS))
+					{
+						w.println(x + ", " + y + ", " + z + ", " +
+								game.typeNames.get(c.type(z, tile)) + ", " +
+								(game.turn - c.born(z, tile)));
+					}
+				}
+			}
+		}
+
+		w.close();
+	}
+}
@@ -0,0 +1,545 @@
+import java.awt.Color;
+import java.awt.event.KeyEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A game without a window whose world is shared by players connecting over the network, with
+ * Client. The server runs a turn every turnMillis milliseconds whether anyone moves or not,
+ * handling at most one key from each player per turn. After each turn, it sends each player the
+ * tiles in their view that look different from what they were last sent. Only the tiles that
+ * came into view and the ones the world says changed are looked at, so what goes over the
+ * network and the work of putting it together depend on how many players there are and how much
+ * they see change, not on how big the world or the view is. It all happens on one thread, with
+ * non-blocking sockets.
+ * Messages to players are an int length followed by the kind of message and what's in it.
+ * Players send single bytes, each the key code of a key they pressed.
+*/
+public class Server extends Minigame {
+	private static final long serialVersionUID = 1L;
+
+	// The kinds of messages sent to players.
+	/** The size of the view in tiles: width, height. */
+	public static final int HELLO = 1;
+	/** The types: how many there are, then the verbose name and colour of each. */
+	public static final int TYPES = 2;
+	/**
+	 * What changed in the view: the turn, where the view's top left is on the map, whether the
+	 * status changed and if so the status and its colour, then how many tiles changed, and for
+	 * each its index in the view, its type on each layer and its light level as in Renderer. The
+	 * indices and types are written with Chunk.writeVarInt(), so there's no limit on either.
+	*/
+	public static final int FRAME = 3;
+	/** The keys players can press. The others, such as saving, are left to the server. */
+	public static final int[] KEYS = { KeyEvent.VK_UP, KeyEvent.VK_DOWN, KeyEvent.VK_LEFT,
+			KeyEvent.VK_RIGHT, KeyEvent.VK_D, KeyEvent.VK_PERIOD };
+	/** How many keys a player can have waiting to be handled. Keys beyond that are ignored. */
+	public static final int MAX_KEYS = 16;
+	/** How much can be waiting to be sent to a player before they're dropped as too slow. */
+	public static final long MAX_OUTPUT_BYTES = 1 << 22;
+
+	/** How long a turn takes in milliseconds, from the soapquest.turnMillis system property. */
+	protected long turnMillis = Long.getLong("soapquest.turnMillis", 250);
+	protected final ArrayList<RemotePlayer> players = new ArrayList<RemotePlayer>();
+	/** Where players appear, which is where the player was in the map or save. */
+	protected final int spawnX, spawnY;
+	protected Selector selector;
+	protected final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+	/** Loads the game from the given folder, or the one the game jar is in if null. */
+	public Server(File gameFolder) {
+		super(gameFolder);
+		// The player from the map or save is only there to show where players appear.
+		spawnX = playerX;
+		spawnY = playerY;
+		if (world.type(PLAYER_LAYER, playerY, playerX) == PERSON) {
+			world.setType(PLAYER_LAYER, playerY, playerX, NOTHING);
+		}
+		carriedItem = NOTHING;
+		carriedAge = 0;
+		doLightCalculations();
+		// Saves only hold one player, so the shared world isn't saved.
+		autosaveTurns = 0;
+	}
+
+	/** Runs a server on the given port, until the program is stopped. */
+	public static void run(int port) {
+		System.setProperty("java.awt.headless", "true");
+		try {
+			Server s = new Server(null);
+			s.registerTickStats();
+			s.serve(port);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Accepts players on the given port and runs turns, until the program is stopped. */
+	public void serve(int port) throws IOException {
+		selector = Selector.open();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		System.out.println("Serving on port " + port + ".");
+		long nextTurn = System.nanoTime();
+		while (true) {
+			long wait = (nextTurn - System.nanoTime()) / 1000000;
+			if (wait > 0) {
+				selector.select(wait);
+				handleSelected();
+				continue;
+			}
+			serverTurn();
+			// If a turn took too long, carry on from now rather than running turns to catch up.
+			nextTurn = Math.max(nextTurn + turnMillis * 1000000, System.nanoTime());
+		}
+	}
+
+	/** Accepts new players, reads keys and sends what's waiting, as the selector says. */
+	protected void handleSelected() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			try {
+				if (key.isAcceptable()) {
+					accept((ServerSocketChannel) key.channel());
+					continue;
+				}
+				RemotePlayer p = (RemotePlayer) key.attachment();
+				if (key.isReadable()) {
+					read(p);
+				}
+				if (key.isValid() && key.isWritable()) {
+					flush(p);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				if (key.attachment() != null) {
+					disconnect((RemotePlayer) key.attachment());
+				}
+			}
+		}
+	}
+
+	protected void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) { return; }
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		RemotePlayer p = new RemotePlayer(channel);
+		if (!spawn(p)) {
+			System.err.println("No room for a player from " + channel.getRemoteAddress() + ".");
+			channel.close();
+			return;
+		}
+		players.add(p);
+		channel.register(selector, SelectionKey.OP_READ, p);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(HELLO);
+		out.writeInt(viewTilesX);
+		out.writeInt(viewTilesY);
+		p.send(message(bytes));
+		flush(p);
+		System.out.println("Player joined from " + channel.getRemoteAddress() + ".");
+	}
+
+	/**
+	 * Puts the given player's avatar on the free tile closest to where players appear.
+	 * @return False if there's no free tile.
+	*/
+	protected boolean spawn(RemotePlayer p) {
+		int maxRadius = Math.max(world.width, world.height);
+		for (int radius = 0; radius <= maxRadius; radius++) {
+			for (int y = spawnY - radius; y <= spawnY + radius; y++) {
+				for (int x = spawnX - radius; x <= spawnX + radius; x++) {
+					// Only look at the ring of tiles this far away.
+					if (Math.abs(x - spawnX) != radius && Math.abs(y - spawnY) != radius) {
+						continue;
+					}
+					if (!world.contains(y, x) || world.type(PLAYER_LAYER, y, x) != NOTHING) {
+						continue;
+					}
+					world.setType(PLAYER_LAYER, y, x, PERSON);
+					world.setAge(PLAYER_LAYER, y, x, 0);
+					p.playerX = x;
+					p.playerY = y;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Reads the keys the given player sent. */
+	protected void read(RemotePlayer p) throws IOException {
+		readBuffer.clear();
+		int read = p.channel.read(readBuffer);
+		if (read == -1) {
+			disconnect(p);
+			return;
+		}
+		for (int i = 0; i < read; i++) {
+			if (p.keys.size() < MAX_KEYS) {
+				p.keys.add(readBuffer.get(i) & 0xFF);
+			}
+		}
+	}
+
+	/**
+	 * Sends what's waiting to the given player, as much as can be sent without blocking, and has
+	 * the selector say when more can be sent if that's not all of it.
+	*/
+	protected void flush(RemotePlayer p) throws IOException {
+		SelectionKey key = p.channel.keyFor(selector);
+		if (p.flush()) {
+			key.interestOps(SelectionKey.OP_READ);
+		} else if (p.outputBytes > MAX_OUTPUT_BYTES) {
+			System.err.println("Dropped " + p.channel.getRemoteAddress() + " as too slow.");
+			disconnect(p);
+		} else {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/** Closes the connection to the given player and takes their avatar off the map. */
+	protected void disconnect(RemotePlayer p) {
+		if (!players.remove(p)) { return; }
+		try {
+			System.out.println("Player left from " + p.channel.getRemoteAddress() + ".");
+			p.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		enter(p);
+		if (world.type(PLAYER_LAYER, playerY, playerX) == PERSON) {
+			world.setType(PLAYER_LAYER, playerY, playerX, NOTHING);
+		}
+		carriedItem = NOTHING;
+		moveCarriedLight();
+		leave(p);
+	}
+
+	/**
+	 * Handles a key from each player who sent one, runs a turn and sends each player what
+	 * changed in their view.
+	*/
+	protected void serverTurn() {
+		for (RemotePlayer p : players) {
+			Integer key = p.keys.poll();
+			if (key == null || !isPlayerKey(key)) { continue; }
+			enter(p);
+			handleKey(key);
+			leave(p);
+		}
+		runTurn();
+		doLightCalculations();
+		int[] playerYs = new int[players.size()];
+		int[] playerXs = new int[players.size()];
+		for (int i = 0; i < players.size(); i++) {
+			RemotePlayer p = players.get(i);
+			enter(p);
+			ageCarriedItem();
+			moveCarriedLight();
+			leave(p);
+			playerYs[i] = p.playerY;
+			playerXs[i] = p.playerX;
+		}
+		tickStats.endPhase(TickStats.LIGHT);
+		world.pageOutIdleChunks(playerYs, playerXs);
+		tickStats.endPhase(TickStats.PAGING);
+		tickStats.endTurn(typeNames);
+
+		ArrayList<RemotePlayer> failed = new ArrayList<RemotePlayer>();
+		for (RemotePlayer p : players) {
+			enter(p);
+			String status = status();
+			Color statusColor = statusColor();
+			leave(p);
+			try {
+				sendView(p, status, statusColor);
+			} catch (Exception e) {
+				e.printStackTrace();
+				failed.add(p);
+			}
+		}
+		// Changes from here on, such as players who leave taking their avatars with them, are
+		// sent with the next turn.
+		world.clearViewChanges();
+		for (RemotePlayer p : new ArrayList<RemotePlayer>(players)) {
+			try {
+				if (failed.contains(p)) {
+					disconnect(p);
+				} else {
+					flush(p);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				disconnect(p);
+			}
+		}
+	}
+
+	protected static boolean isPlayerKey(int key) {
+		for (int k : KEYS) {
+			if (k == key) { return true; }
+		}
+		return false;
+	}
+
+	protected String keyHelp() {
+		return "Arrows to move/pick up/use, d to drop, period to interact with the ground.";
+	}
+
+	/**
+	 * A player's move doesn't run a turn here, as it does when playing alone. Turns run on the
+	 * server's clock instead.
+	*/
+	protected void mapTick() {}
+
+	/** Makes the given player's avatar the game's player. */
+	protected void enter(RemotePlayer p) {
+		playerX = p.playerX;
+		playerY = p.playerY;
+		carriedItem = p.carriedItem;
+		carriedAge = p.carriedAge;
+		carriedLight = p.carriedLight;
+		carriedLightX = p.carriedLightX;
+		carriedLightY = p.carriedLightY;
+		wantToDrop = p.wantToDrop;
+		useTargetZ = p.useTargetZ;
+		action = p.action;
+		transformDone = p.transformDone;
+	}
+
+	/**
+	 * Puts the game's player back into the given player's avatar, and leaves the game with a
+	 * player who carries nothing, so turns don't age or light anything for no one.
+	*/
+	protected void leave(RemotePlayer p) {
+		p.playerX = playerX;
+		p.playerY = playerY;
+		p.carriedItem = carriedItem;
+		p.carriedAge = carriedAge;
+		p.carriedLight = carriedLight;
+		p.carriedLightX = carriedLightX;
+		p.carriedLightY = carriedLightY;
+		p.wantToDrop = wantToDrop;
+		p.useTargetZ = useTargetZ;
+		p.action = action;
+		p.transformDone = transformDone;
+		playerX = spawnX;
+		playerY = spawnY;
+		carriedItem = NOTHING;
+		carriedAge = 0;
+		carriedLight = 0;
+		action = null;
+		transformDone = false;
+	}
+
+	/**
+	 * Adds the tiles in the given player's view that look different from what they were last sent
+	 * to what's waiting to be sent to them, along with the given status bar if it changed. Only
+	 * the tiles that came into view and the tiles in chunks where the world says something
+	 * changed since the last turn are looked at.
+	*/
+	protected void sendView(RemotePlayer p, String status, Color statusColor) throws IOException {
+		if (p.sentTypeColors != typeColors) {
+			p.send(typesMessage());
+			p.sentTypeColors = typeColors;
+			p.sentTypes = null;
+		}
+		int left = p.playerX - viewTilesX / 2;
+		int top = p.playerY - viewTilesY / 2;
+		int right = left + viewTilesX;
+		int bottom = top + viewTilesY;
+		ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+		DataOutputStream tiles = new DataOutputStream(tileBytes);
+		int changed = 0;
+		if (p.sentTypes == null) {
+			p.sentTypes = new int[MAP_LAYERS][viewTilesX * viewTilesY];
+			p.sentLevels = new byte[viewTilesX * viewTilesY];
+			changed += sendTiles(p, tiles, left, top, top, bottom, left, right, true);
+		} else {
+			int oldLeft = p.sentLeft;
+			int oldTop = p.sentTop;
+			int oldRight = oldLeft + viewTilesX;
+			int oldBottom = oldTop + viewTilesY;
+			// The tiles that came into view.
+			for (int y = top; y < bottom; y++) {
+				if (y < oldTop || y >= oldBottom) {
+					changed += sendTiles(p, tiles, left, top, y, y + 1, left, right, true);
+				} else {
+					changed += sendTiles(p, tiles, left, top, y, y + 1, left,
+							Math.min(right, oldLeft), true);
+					changed += sendTiles(p, tiles, left, top, y, y + 1, Math.max(left, oldRight),
+							right, true);
+				}
+			}
+			// The tiles that stayed in view, where they're on the map.
+			changed += sendChanges(p, tiles, left, top, Math.max(Math.max(top, oldTop), 0),
+					Math.min(Math.min(bottom, oldBottom), world.height),
+					Math.max(Math.max(left, oldLeft), 0),
+					Math.min(Math.min(right, oldRight), world.width));
+		}
+		p.sentLeft = left;
+		p.sentTop = top;
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FRAME);
+		out.writeInt(turn);
+		out.writeInt(left);
+		out.writeInt(top);
+		boolean statusChanged = !status.equals(p.sentStatus) ||
+				!statusColor.equals(p.sentStatusColor);
+		out.writeBoolean(statusChanged);
+		if (statusChanged) {
+			out.writeUTF(status);
+			out.writeInt(statusColor.getRGB());
+			p.sentStatus = status;
+			p.sentStatusColor = statusColor;
+		}
+		out.writeInt(changed);
+		tiles.flush();
+		tileBytes.writeTo(out);
+		p.send(message(bytes));
+	}
+	
+	/**
+	 * Sends the tiles in the given area of the map, which the player has been sent before, that
+	 * look different now, looking only at the tiles that the world says changed type, or all of
+	 * the chunks where the light changed or that came and went.
+	 * @return How many tiles were sent.
+	*/
+	protected int sendChanges(RemotePlayer p, DataOutputStream out, int left, int top,
+			int startY, int endY, int startX, int endX) throws IOException
+	{
+		if (startY >= endY || startX >= endX) { return 0; }
+		int changed = 0;
+		for (int cy = startY >> Chunk.SHIFT; cy <= (endY - 1) >> Chunk.SHIFT; cy++) {
+			for (int cx = startX >> Chunk.SHIFT; cx <= (endX - 1) >> Chunk.SHIFT; cx++) {
+				// The part of the area in this chunk.
+				int chunkY = cy << Chunk.SHIFT;
+				int chunkX = cx << Chunk.SHIFT;
+				int y0 = Math.max(startY, chunkY);
+				int y1 = Math.min(endY, chunkY + Chunk.SIZE);
+				int x0 = Math.max(startX, chunkX);
+				int x1 = Math.min(endX, chunkX + Chunk.SIZE);
+				int index = cy * world.chunksX + cx;
+				Chunk c = world.chunks[index];
+				if (world.baseLightChanged || world.viewChangedChunks.get(index) ||
+					(c != null && c.lightChanged))
+				{
+					changed += sendTiles(p, out, left, top, y0, y1, x0, x1, false);
+					continue;
+				}
+				if (c == null) { continue; }
+				int endTile = (y1 - chunkY) << Chunk.SHIFT;
+				for (int z = 0; z < MAP_LAYERS; z++) {
+					TileSet changes = c.viewChanges[z];
+					for (int tile = changes.next((y0 - chunkY) << Chunk.SHIFT);
+						tile != -1 && tile < endTile; tile = changes.next(tile + 1))
+					{
+						int x = chunkX + (tile & Chunk.MASK);
+						if (x >= x0 && x < x1 &&
+							sendTile(p, out, left, top, chunkY + (tile >> Chunk.SHIFT), x, false))
+						{
+							changed++;
+						}
+					}
+				}
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * Sends the tiles in the given area of the map that look different from what the player was
+	 * last sent, or all of them if force is set, as for tiles that just came into view.
+	 * @return How many tiles were sent.
+	*/
+	protected int sendTiles(RemotePlayer p, DataOutputStream out, int left, int top, int startY,
+			int endY, int startX, int endX, boolean force) throws IOException
+	{
+		int changed = 0;
+		for (int y = startY; y < endY; y++) {
+			for (int x = startX; x < endX; x++) {
+				if (sendTile(p, out, left, top, y, x, force)) {
+					changed++;
+				}
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * Sends the given tile if it looks different from what the player was last sent, or if force
+	 * is set: its index in the view with the given top left, its type on each layer and its light
+	 * level. Tiles off the map hold NOTHING and are dark.
+	 * @return Whether the tile was sent.
+	*/
+	protected boolean sendTile(RemotePlayer p, DataOutputStream out, int left, int top, int y,
+			int x, boolean force) throws IOException
+	{
+		int slot = slot(y, x);
+		boolean onMap = world.contains(y, x);
+		int level = Renderer.level(onMap ? world.lit(y, x) : 0);
+		boolean same = !force && p.sentLevels[slot] == level;
+		for (int z = 0; z < MAP_LAYERS; z++) {
+			int type = onMap ? world.type(z, y, x) : NOTHING;
+			same &= p.sentTypes[z][slot] == type;
+			p.sentTypes[z][slot] = type;
+		}
+		if (same) { return false; }
+		p.sentLevels[slot] = (byte) level;
+		Chunk.writeVarInt(out, (y - top) * viewTilesX + x - left);
+		for (int z = 0; z < MAP_LAYERS; z++) {
+			Chunk.writeVarInt(out, p.sentTypes[z][slot]);
+		}
+		out.writeByte(level);
+		return true;
+	}
+	
+	/**
+	 * @return The slot of the given map tile in what a player was last sent. Tiles that are in
+	 * view together always have different slots.
+	*/
+	protected int slot(int y, int x) {
+		return Math.floorMod(y, viewTilesY) * viewTilesX + Math.floorMod(x, viewTilesX);
+	}
+	
+	/** @return A message with the names and colours of the types. */
+	protected ByteBuffer typesMessage() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(TYPES);
+		out.writeInt(numberOfTypes);
+		for (int t = 0; t < numberOfTypes; t++) {
+			out.writeUTF(verboseTypeNames[t] == null ? "" : verboseTypeNames[t]);
+			out.writeBoolean(typeColors[t] != null);
+			out.writeInt(typeColors[t] == null ? 0 : typeColors[t].getRGB());
+		}
+		return message(bytes);
+	}
+
+	/** @return The given message with its length in front, ready to be sent. */
+	protected static ByteBuffer message(ByteArrayOutputStream bytes) {
+		ByteBuffer message = ByteBuffer.allocate(4 + bytes.size());
+		message.putInt(bytes.size()).put(bytes.toByteArray());
+		message.flip();
+		return message;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * A seeded source of random numbers for the simulation. Instead of drawing numbers one after the
+ * other from shared state, numbers are worked out from the seed and a key, such as a turn or a
+ * tile, so the same seed always gives the same numbers for the same keys, in any order and from
+ * any number of threads.
+ * A random source can be split into independent ones, for example one per turn, which can be
+ * split again, for example per tile.
+*/
+public final class SimRandom {
+	/** The seed all numbers are worked out from. */
+	public final long seed;
+
+	public SimRandom(long seed) {
+		this.seed = seed;
+	}
+
+	/** @return A random source independent of this one and of those split off with other keys. */
+	public SimRandom split(long key) {
+		return new SimRandom(mix(seed + (key + 1) * 0x9E3779B97F4A7C15L));
+	}
+
+	/** @return A random number from 0 to bound - 1 for the given key. */
+	public int nextInt(long key, int bound) {
+		return (int) ((mix(seed ^ mix(key)) >>> 1) % bound);
+	}
+
+	/** @return The bits of the given number mixed up, as in SplitMix64. */
+	public static long mix(long h) {
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A full save of the game, as written to save.dat. The save starts with MAGIC, VERSION and
+ * flags, followed by the generation, the turn, the map size, the random seed, the default type
+ * of each layer, the names of the types, the player's state and the tiles of each chunk that was
+ * ever created, as runs of tiles with the same type and age.
+ * Type numbers in a snapshot are the ones in its own list of type names, which needn't match the
+ * game's, so saves still load after types are added to the rules.
+*/
+public class Snapshot {
+	/** The first four bytes of a save, "SQSV". */
+	public static final int MAGIC = 0x53515356;
+	/** The version of the save format. */
+	public static final int VERSION = 2;
+	/** Flag saying the rest of the save is GZIP compressed. */
+	public static final int GZIP = 1;
+
+	/**
+	 * A number identifying this save, so the journal knows which save its changes go on top of.
+	 * After changes from a journal are applied, it's the journal's generation.
+	*/
+	public long generation;
+	public int turn;
+	/** The size of the world in tiles. */
+	public final int width, height;
+	/** The size of the world in chunks. */
+	public final int chunksX, chunksY;
+	public long seed;
+	/** The type of each layer's tiles in chunks that were never created. */
+	public final int[] defaultTypes;
+	/** The names of the types, by type number. */
+	public final ArrayList<String> typeNames = new ArrayList<String>();
+	public int playerX, playerY, carriedItem, carriedAge;
+	/** The chunks that were ever created, indexed as cy * chunksX + cx, or null. */
+	protected final Chunk[] chunks;
+	/** The copy of the world the chunks are taken from instead, if any. */
+	protected final WorldCopy copy;
+
+	public Snapshot(int width, int height, int[] defaultTypes) {
+		this.width = width;
+		this.height = height;
+		this.defaultTypes = defaultTypes;
+		chunksX = (width + Chunk.MASK) >> Chunk.SHIFT;
+		chunksY = (height + Chunk.MASK) >> Chunk.SHIFT;
+		chunks = new Chunk[chunksX * chunksY];
+		copy = null;
+	}
+
+	/** Creates a snapshot whose chunks are taken from the given copy of the world. */
+	public Snapshot(WorldCopy copy) {
+		width = copy.width;
+		height = copy.height;
+		defaultTypes = copy.defaultTypes;
+		chunksX = copy.chunksX;
+		chunksY = copy.chunksY;
+		chunks = null;
+		this.copy = copy;
+	}
+
+	/** @return The chunk with the given index, or null if it was never created. */
+	public Chunk chunk(int index) throws IOException {
+		return copy == null ? chunks[index] : copy.chunk(index);
+	}
+
+	/** @return The chunk with the given index, creating it if needed. */
+	public Chunk createChunk(int index) {
+		if (chunks[index] == null) {
+			chunks[index] = new Chunk(index % chunksX, index / chunksX, defaultTypes);
+		}
+		return chunks[index];
+	}
+
+	/** Sets the type and age of the given tile, the age being as of the snapshot's turn. */
+	public void setTile(int z, int y, int x, int type, int age) {
+		if (x < 0 || x >= width || y < 0 || y >= height) { return; }
+		Chunk c = createChunk((y >> Chunk.SHIFT) * chunksX + (x >> Chunk.SHIFT));
+		c.tiles[z][World.tileIndex(y, x)] = Chunk.pack(type, turn - age);
+		c.hash = 0;
+	}
+
+	/** @return The type number of the type with the given name, which is added if needed. */
+	public int type(String name) {
+		int type = typeNames.indexOf(name);
+		if (type == -1) {
+			type = typeNames.size();
+			typeNames.add(name);
+		}
+		return type;
+	}
+
+	/**
+	 * Writes the snapshot to the given file. The file is written next to the old one and then
+	 * moved into place, so a failed save leaves the old one alone.
+	*/
+	public void write(File f, boolean compress) throws IOException {
+		File temp = new File(f.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(12);
+			header.putInt(MAGIC).putInt(VERSION).putInt(compress ? GZIP : 0);
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			OutputStream stream = Channels.newOutputStream(channel);
+			if (compress) {
+				// Saving quickly matters more than the last few bytes.
+				stream = new GZIPOutputStream(stream, 1 << 16) {
+					{ def.setLevel(Deflater.BEST_SPEED); }
+				};
+			}
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+			writeBody(out);
+			out.close();
+		} finally {
+			channel.close();
+		}
+		Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Writes what comes after the header of a save to the given stream. */
+	public void writeBody(DataOutputStream out) throws IOException {
+		out.writeLong(generation);
+		out.writeInt(turn);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeLong(seed);
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			out.writeInt(defaultTypes[z]);
+		}
+		out.writeInt(typeNames.size());
+		for (String name : typeNames) {
+			out.writeUTF(name);
+		}
+		out.writeInt(playerX);
+		out.writeInt(playerY);
+		out.writeInt(carriedItem);
+		out.writeInt(carriedAge);
+		for (int i = 0; i < chunksX * chunksY; i++) {
+			Chunk c = chunk(i);
+			if (c == null) { continue; }
+			out.writeInt(i);
+			c.writeRuns(out, turn);
+		}
+		out.writeInt(-1);
+	}
+
+	/** @return The snapshot in the given file, as written by write(). */
+	public static Snapshot read(File f) throws IOException {
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(12);
+			while (header.hasRemaining() && channel.read(header) != -1) {}
+			header.flip();
+			if (header.remaining() < 12 || header.getInt() != MAGIC) {
+				throw new IOException(f + " is not a save.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(f + " has unknown save version " + version + ".");
+			}
+			InputStream stream = Channels.newInputStream(channel);
+			if ((header.getInt() & GZIP) != 0) {
+				stream = new GZIPInputStream(stream, 1 << 16);
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+			return readBody(in, f.toString());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return The snapshot in the given stream, as written by writeBody().
+	 * @param source Where the stream is from, for error messages.
+	*/
+	public static Snapshot readBody(DataInputStream in, String source) throws IOException {
+		long generation = in.readLong();
+		int turn = in.readInt();
+		int width = in.readInt();
+		int height = in.readInt();
+		long seed = in.readLong();
+		int[] defaultTypes = new int[Minigame.MAP_LAYERS];
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			defaultTypes[z] = in.readInt();
+		}
+		Snapshot s = new Snapshot(width, height, defaultTypes);
+		s.generation = generation;
+		s.turn = turn;
+		s.seed = seed;
+		int types = in.readInt();
+		int[] typeMap = new int[types];
+		for (int t = 0; t < types; t++) {
+			s.typeNames.add(in.readUTF());
+			typeMap[t] = t;
+		}
+		s.playerX = in.readInt();
+		s.playerY = in.readInt();
+		s.carriedItem = in.readInt();
+		s.carriedAge = in.readInt();
+		for (int index = in.readInt(); index != -1; index = in.readInt()) {
+			if (index < 0 || index >= s.chunks.length) {
+				throw new IOException(source + " holds unknown chunk " + index + ".");
+			}
+			s.createChunk(index).readRuns(in, typeMap, turn);
+		}
+		return s;
+	}
+}
@@ -0,0 +1,240 @@
+import java.util.Arrays;
+
+/**
+ * Counts what the map tick does, by type, and times each phase of a turn, so it can be seen where
+ * tick time goes. The strips count into their own arrays while they tick, which are added up here
+ * once they're done, so counting costs an increment per thing counted and no locking. Everything
+ * else happens once a turn on the simulation thread, and what's shown over JMX is only updated
+ * at the end of a turn.
+*/
+public class TickStats implements TickStatsMBean {
+	// The things counted for each type, as counted by TickStrip.count().
+	public static final int AGED = 0;
+	public static final int INTERACTIONS = 1;
+	public static final int RULE_LOOKUPS = 2;
+	public static final int SEEKS = 3;
+	public static final int SEEKS_MOVED = 4;
+	public static final int WANDERS = 5;
+	public static final int CHANGES = 6;
+	public static final int COUNTS = 7;
+	public static final String[] COUNT_NAMES = { "aged", "interactions", "rule lookups", "seeks",
+			"seeks moved", "wanders", "changes" };
+	// The timed phases of a turn.
+	/** Paging in the chunks the tick needs and working out the flow fields. */
+	public static final int PREPARE = 0;
+	/** Ticking the tiles of the strips. */
+	public static final int TILES = 1;
+	/** Making the changes the strips put aside. */
+	public static final int APPLY = 2;
+	/** Working out the light again. */
+	public static final int LIGHT = 3;
+	/** Paging out idle chunks. */
+	public static final int PAGING = 4;
+	public static final int PHASES = 5;
+	public static final String[] PHASE_NAMES = { "prepare", "tiles", "apply", "light", "paging" };
+
+	/**
+	 * How many turns go by between log lines, from the soapquest.tickStatsLog system property, or
+	 * 0 for no log lines.
+	*/
+	protected final int logTurns = Integer.getInteger("soapquest.tickStatsLog", 0);
+	// What's counted in the current turn. Only used on the simulation thread.
+	/** When the current phase started. */
+	protected long phaseStart;
+	protected final long[] turnNanos = new long[PHASES];
+	/** The counts of each type, as type * COUNTS + what was counted. */
+	protected long[] turnCounts = new long[0];
+	protected long turnLightSplats;
+	// What's shown. Only used while holding the lock.
+	protected long turns;
+	protected final long[] lastNanos = new long[PHASES];
+	protected final long[] totalNanos = new long[PHASES];
+	protected long[] totalCounts = new long[0];
+	protected long totalLightSplats;
+	/** The names of the types, as they were at the end of the last turn. */
+	protected String[] typeNames = new String[0];
+	// What was shown in the last log line.
+	protected final long[] loggedNanos = new long[PHASES];
+	protected final long[] loggedCounts = new long[COUNTS];
+	protected long loggedLightSplats;
+
+	/** Starts timing a phase of the turn. */
+	public void startPhase() {
+		phaseStart = System.nanoTime();
+	}
+
+	/** Ends the given phase of the turn, and starts timing the next. */
+	public void endPhase(int phase) {
+		long now = System.nanoTime();
+		turnNanos[phase] += now - phaseStart;
+		phaseStart = now;
+	}
+
+	/** Adds what the given strip counted to the current turn. */
+	public void add(TickStrip strip) {
+		int[] counts = strip.counts;
+		if (counts.length > turnCounts.length) {
+			turnCounts = Arrays.copyOf(turnCounts, counts.length);
+		}
+		for (int i = 0; i < counts.length; i++) {
+			turnCounts[i] += counts[i];
+		}
+	}
+
+	/** Adds the given number of light splats to the current turn. */
+	public void addLightSplats(long splats) {
+		turnLightSplats += splats;
+	}
+
+	/**
+	 * Ends the current turn, adding what was counted in it to what's shown.
+	 * @param typeNames The names of the types, which are kept for getCountsByType().
+	*/
+	public void endTurn(String[] typeNames) {
+		synchronized (this) {
+			turns++;
+			for (int p = 0; p < PHASES; p++) {
+				lastNanos[p] = turnNanos[p];
+				totalNanos[p] += turnNanos[p];
+			}
+			if (turnCounts.length > totalCounts.length) {
+				totalCounts = Arrays.copyOf(totalCounts, turnCounts.length);
+			}
+			for (int i = 0; i < turnCounts.length; i++) {
+				totalCounts[i] += turnCounts[i];
+			}
+			totalLightSplats += turnLightSplats;
+			this.typeNames = typeNames;
+		}
+		Arrays.fill(turnNanos, 0);
+		Arrays.fill(turnCounts, 0);
+		turnLightSplats = 0;
+		if (logTurns > 0 && turns % logTurns == 0) {
+			System.out.println(logLine());
+		}
+	}
+
+	/** @return The times and counts since the last log line, as a line of text. */
+	protected synchronized String logLine() {
+		StringBuilder sb = new StringBuilder("Turn stats over " + logTurns + " turns: ms/turn");
+		for (int p = 0; p < PHASES; p++) {
+			sb.append(" ").append(PHASE_NAMES[p]).append(" ");
+			sb.append(String.format("%.3f", (totalNanos[p] - loggedNanos[p]) / 1e6 / logTurns));
+			loggedNanos[p] = totalNanos[p];
+		}
+		sb.append(", counts");
+		for (int what = 0; what < COUNTS; what++) {
+			long count = total(what);
+			sb.append(" ").append(COUNT_NAMES[what]).append(" ").append(count - loggedCounts[what]);
+			loggedCounts[what] = count;
+		}
+		sb.append(" light splats ").append(totalLightSplats - loggedLightSplats);
+		loggedLightSplats = totalLightSplats;
+		return sb.toString();
+	}
+
+	/** @return The total of the given count over all types. */
+	protected synchronized long total(int what) {
+		long total = 0;
+		for (int i = what; i < totalCounts.length; i += COUNTS) {
+			total += totalCounts[i];
+		}
+		return total;
+	}
+
+	protected static double[] millis(long[] nanos) {
+		double[] millis = new double[nanos.length];
+		for (int i = 0; i < nanos.length; i++) {
+			millis[i] = nanos[i] / 1e6;
+		}
+		return millis;
+	}
+
+	public synchronized long getTurns() {
+		return turns;
+	}
+
+	public String[] getPhaseNames() {
+		return PHASE_NAMES.clone();
+	}
+
+	public synchronized double[] getLastTurnPhaseMillis() {
+		return millis(lastNanos);
+	}
+
+	public synchronized double[] getTotalPhaseMillis() {
+		return millis(totalNanos);
+	}
+
+	public synchronized double getAverageTurnMillis() {
+		if (turns == 0) { return 0; }
+		long nanos = 0;
+		for (long n : totalNanos) {
+			nanos += n;
+		}
+		return nanos / 1e6 / turns;
+	}
+
+	public long getAged() {
+		return total(AGED);
+	}
+
+	public long getInteractions() {
+		return total(INTERACTIONS);
+	}
+
+	public long getRuleLookups() {
+		return total(RULE_LOOKUPS);
+	}
+
+	public long getSeeks() {
+		return total(SEEKS);
+	}
+
+	public long getSeeksMoved() {
+		return total(SEEKS_MOVED);
+	}
+
+	public long getWanders() {
+		return total(WANDERS);
+	}
+
+	public long getChanges() {
+		return total(CHANGES);
+	}
+
+	public synchronized long getLightSplats() {
+		return totalLightSplats;
+	}
+
+	public synchronized String getCountsByType() {
+		StringBuilder sb = new StringBuilder();
+		for (int type = 0; type * COUNTS < totalCounts.length; type++) {
+			boolean any = false;
+			for (int what = 0; what < COUNTS; what++) {
+				any |= totalCounts[type * COUNTS + what] != 0;
+			}
+			if (!any) { continue; }
+			sb.append(type < typeNames.length ? typeNames[type] : "type " + type).append(":");
+			for (int what = 0; what < COUNTS; what++) {
+				long count = totalCounts[type * COUNTS + what];
+				if (count != 0) {
+					sb.append(" ").append(COUNT_NAMES[what]).append(" ").append(count);
+				}
+			}
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	public synchronized void reset() {
+		turns = 0;
+		Arrays.fill(lastNanos, 0);
+		Arrays.fill(totalNanos, 0);
+		Arrays.fill(totalCounts, 0);
+		totalLightSplats = 0;
+		Arrays.fill(loggedNanos, 0);
+		Arrays.fill(loggedCounts, 0);
+		loggedLightSplats = 0;
+	}
+}
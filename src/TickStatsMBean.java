@@ -0,0 +1,51 @@
+/**
+ * What TickStats shows over JMX, for looking at with JConsole or any other JMX client while the
+ * game runs. Counts are totals since the game started or reset() was last called, unless they
+ * say they're for the last turn.
+*/
+public interface TickStatsMBean {
+	/** @return The number of turns counted. */
+	long getTurns();
+
+	/** @return The names of the timed phases of a turn, in the order of the times below. */
+	String[] getPhaseNames();
+
+	/** @return How long each phase of the last turn took, in milliseconds. */
+	double[] getLastTurnPhaseMillis();
+
+	/** @return How long each phase took over all the turns counted, in milliseconds. */
+	double[] getTotalPhaseMillis();
+
+	/** @return How long a turn took on average, in milliseconds. */
+	double getAverageTurnMillis();
+
+	/** @return The number of times an item had its turn. */
+	long getAged();
+
+	/** @return The number of interactions that happened. */
+	long getInteractions();
+
+	/** @return The number of times an interaction rule was looked up. */
+	long getRuleLookups();
+
+	/** @return The number of times a seeking item looked for what it seeks. */
+	long getSeeks();
+
+	/** @return The number of times a seeking item moved towards what it seeks. */
+	long getSeeksMoved();
+
+	/** @return The number of times a wandering item moved. */
+	long getWanders();
+
+	/** @return The number of items that changed into something else with age. */
+	long getChanges();
+
+	/** @return The number of times a light source's light was added to or taken off the map. */
+	long getLightSplats();
+
+	/** @return The counts above for each type that did anything, one type per line. */
+	String getCountsByType();
+
+	/** Starts counting from zero again. */
+	void reset();
+}
@@ -0,0 +1,138 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A row of chunks being ticked, possibly at the same time as other rows. Rows are ticked
+ * alternately, even rows first, so rows ticked together are never next to each other.
+ * Tiles in the strip's own chunks are changed right away. Changes to other tiles, which can only
+ * be in the rows of tiles just above and below the strip, are put aside and made by apply() once
+ * all the strips ticked together are done. Until then, the strip sees its own changes to those
+ * tiles and no one else's, so the result doesn't depend on which strips run on which thread.
+*/
+public class TickStrip {
+	// What is kept for each layer of a tile whose changes are put aside.
+	protected static final int TYPE = 0;
+	protected static final int AGE = 1;
+	protected static final int TICKED_ON = 2;
+	protected static final int FIELDS = 3;
+
+	public final World world;
+	/** The row of chunks in the strip. */
+	public final int row;
+	/**
+	 * The tiles whose changes are put aside, keyed by location as packed by World.pack(), in the
+	 * order they were first changed. Each holds the type, age and turn ticked on of each layer.
+	*/
+	protected final LinkedHashMap<Long, int[]> deferred = new LinkedHashMap<Long, int[]>();
+	/**
+	 * What the strip did to each type, as type * TickStats.COUNTS + what was counted, for
+	 * TickStats to add up once the strip is done.
+	*/
+	protected int[] counts = new int[0];
+
+	public TickStrip(World world, int row) {
+		this.world = world;
+		this.row = row;
+	}
+
+	/** @return Whether changes to the given tile can be made right away. */
+	protected boolean owns(int y, int x) {
+		return y >> Chunk.SHIFT == row && world.isResident(world.chunkIndex(y, x));
+	}
+
+	/** @return What's put aside for the given tile, starting from how it is now. */
+	protected int[] deferredTile(int y, int x) {
+		long location = World.pack(y, x);
+		int[] tile = deferred.get(location);
+		if (tile == null) {
+			tile = new int[Minigame.MAP_LAYERS * FIELDS];
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				tile[z * FIELDS + TYPE] = world.type(z, y, x);
+				tile[z * FIELDS + AGE] = world.age(z, y, x);
+				tile[z * FIELDS + TICKED_ON] = world.tickedOn(z, y, x);
+			}
+			deferred.put(location, tile);
+		}
+		return tile;
+	}
+
+	public int type(int z, int y, int x) {
+		if (!owns(y, x)) {
+			int[] tile = deferred.get(World.pack(y, x));
+			if (tile != null) { return tile[z * FIELDS + TYPE]; }
+		}
+		return world.type(z, y, x);
+	}
+
+	public void setType(int z, int y, int x, int type) {
+		if (owns(y, x)) {
+			world.setType(z, y, x, type);
+		} else {
+			deferredTile(y, x)[z * FIELDS + TYPE] = type;
+		}
+	}
+
+	public int age(int z, int y, int x) {
+		if (!owns(y, x)) {
+			int[] tile = deferred.get(World.pack(y, x));
+			if (tile != null) { return tile[z * FIELDS + AGE]; }
+		}
+		return world.age(z, y, x);
+	}
+
+	public void setAge(int z, int y, int x, int age) {
+		if (owns(y, x)) {
+			world.setAge(z, y, x, age);
+		} else {
+			deferredTile(y, x)[z * FIELDS + AGE] = age;
+		}
+	}
+
+	public int tickedOn(int z, int y, int x) {
+		if (!owns(y, x)) {
+			int[] tile = deferred.get(World.pack(y, x));
+			if (tile != null) { return tile[z * FIELDS + TICKED_ON]; }
+		}
+		return world.tickedOn(z, y, x);
+	}
+
+	public void setTickedOn(int z, int y, int x, int turn) {
+		if (owns(y, x)) {
+			world.setTickedOn(z, y, x, turn);
+		} else {
+			deferredTile(y, x)[z * FIELDS + TICKED_ON] = turn;
+		}
+	}
+
+	/** Counts one of the given thing done by an item of the given type. */
+	public void count(int what, int type) {
+		int i = type * TickStats.COUNTS + what;
+		if (i >= counts.length) {
+			int types = Math.max(type + 1, counts.length / TickStats.COUNTS * 2);
+			counts = Arrays.copyOf(counts, types * TickStats.COUNTS);
+		}
+		counts[i]++;
+	}
+
+	/** Makes the changes that were put aside, in the order they were first made. */
+	public void apply() {
+		for (Map.Entry<Long, int[]> e : deferred.entrySet()) {
+			int y = World.y(e.getKey());
+			int x = World.x(e.getKey());
+			int[] tile = e.getValue();
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				if (world.type(z, y, x) != tile[z * FIELDS + TYPE]) {
+					world.setType(z, y, x, tile[z * FIELDS + TYPE]);
+				}
+				if (world.age(z, y, x) != tile[z * FIELDS + AGE]) {
+					world.setAge(z, y, x, tile[z * FIELDS + AGE]);
+				}
+				if (world.tickedOn(z, y, x) != tile[z * FIELDS + TICKED_ON]) {
+					world.setTickedOn(z, y, x, tile[z * FIELDS + TICKED_ON]);
+				}
+			}
+		}
+		deferred.clear();
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * A set of tile indices, stored as a bitset with a second, summary level that records which words
+ * of the bitset are non-empty. Finding the next tile in the set skips empty stretches 4096 tiles
+ * at a time, so looping over a sparse set costs little more than the number of tiles in it.
+*/
+public class TileSet {
+	/** One bit per tile. */
+	protected final long[] words;
+	/** One bit per word, set if the word is non-empty. */
+	protected final long[] summary;
+	/** The number of tiles in the set. */
+	protected int size;
+
+	/** Creates an empty set of tiles numbered from 0 to tiles - 1. */
+	public TileSet(int tiles) {
+		words = new long[(tiles + 63) >>> 6];
+		summary = new long[(words.length + 63) >>> 6];
+	}
+
+	public boolean contains(int tile) {
+		return (words[tile >>> 6] & (1L << tile)) != 0;
+	}
+
+	public void add(int tile) {
+		int word = tile >>> 6;
+		if ((words[word] & (1L << tile)) != 0) { return; }
+		words[word] |= 1L << tile;
+		summary[word >>> 6] |= 1L << word;
+		size++;
+	}
+
+	public void remove(int tile) {
+		int word = tile >>> 6;
+		if ((words[word] & (1L << tile)) == 0) { return; }
+		words[word] &= ~(1L << tile);
+		if (words[word] == 0) {
+			summary[word >>> 6] &= ~(1L << word);
+		}
+		size--;
+	}
+
+	/** @return The number of tiles in the set. */
+	public int size() {
+		return size;
+	}
+
+	/** @return The first tile in the set at or after the given tile, or -1 if there is none. */
+	public int next(int from) {
+		int word = from >>> 6;
+		if (word >= words.length) { return -1; }
+		long bits = words[word] & (-1L << from);
+		if (bits != 0) {
+			return (word << 6) + Long.numberOfTrailingZeros(bits);
+		}
+		// Use the summary to find the next non-empty word.
+		word++;
+		int summaryWord = word >>> 6;
+		if (summaryWord >= summary.length) { return -1; }
+		long summaryBits = summary[summaryWord] & (-1L << word);
+		while (summaryBits == 0) {
+			if (++summaryWord == summary.length) { return -1; }
+			summaryBits = summary[summaryWord];
+		}
+		word = (summaryWord << 6) + Long.numberOfTrailingZeros(summaryBits);
+		return (word << 6) + Long.numberOfTrailingZeros(words[word]);
+	}
+}
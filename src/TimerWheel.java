@@ -0,0 +1,73 @@
+import java.util.Arrays;
+
+/**
+ * Timers that go off in given turns, each carrying a key, for waking up items that only do
+ * something at certain ages. This is a hashed timing wheel: a timer goes into the slot for its
+ * turn modulo SLOTS, and taking the timers due in a turn only looks at that turn's slot, handing
+ * over the timers that are due and keeping the ones due a time round later. So adding a timer
+ * and taking the due ones cost next to nothing however many timers there are, and a timer set
+ * far ahead is only looked at once every SLOTS turns until it goes off.
+*/
+public class TimerWheel {
+	/** The number of slots, and so the number of turns ahead a timer can go off in one go round. */
+	public static final int SLOTS = 1 << 10;
+
+	/** The keys of the timers in each slot. */
+	protected final long[][] keys = new long[SLOTS][];
+	/** The turn each timer in each slot goes off in. */
+	protected final int[][] turns = new int[SLOTS][];
+	/** The number of timers in each slot. */
+	protected final int[] sizes = new int[SLOTS];
+	/** The number of timers in all the slots. */
+	protected int size;
+
+	/** Adds a timer with the given key that goes off in the given turn. */
+	public void add(int turn, long key) {
+		int slot = turn & (SLOTS - 1);
+		if (keys[slot] == null) {
+			keys[slot] = new long[8];
+			turns[slot] = new int[8];
+		} else if (sizes[slot] == keys[slot].length) {
+			keys[slot] = Arrays.copyOf(keys[slot], sizes[slot] * 2);
+			turns[slot] = Arrays.copyOf(turns[slot], sizes[slot] * 2);
+		}
+		keys[slot][sizes[slot]] = key;
+		turns[slot][sizes[slot]++] = turn;
+		size++;
+	}
+
+	/**
+	 * @return The keys of the timers that go off in the given turn, in the order they were added,
+	 * which are taken out.
+	*/
+	public long[] take(int turn) {
+		int slot = turn & (SLOTS - 1);
+		long[] slotKeys = keys[slot];
+		int[] slotTurns = turns[slot];
+		int due = 0;
+		for (int i = 0; i < sizes[slot]; i++) {
+			if (slotTurns[i] == turn) { due++; }
+		}
+		long[] taken = new long[due];
+		if (due == 0) { return taken; }
+		// Hand over the due timers and move the others up to fill the gaps.
+		int kept = 0;
+		due = 0;
+		for (int i = 0; i < sizes[slot]; i++) {
+			if (slotTurns[i] == turn) {
+				taken[due++] = slotKeys[i];
+			} else {
+				slotKeys[kept] = slotKeys[i];
+				slotTurns[kept++] = slotTurns[i];
+			}
+		}
+		sizes[slot] = kept;
+		size -= due;
+		return taken;
+	}
+
+	/** @return The number of timers yet to go off. */
+	public int size() {
+		return size;
+	}
+}
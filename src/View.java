@@ -0,0 +1,65 @@
+import java.awt.Color;
+
+/**
+ * What the player sees after a move: the types and light of the tiles on screen, the status bar
+ * and the colours and names to draw them with. The simulation thread puts together a new view
+ * after handling input and publishes it, and paint() draws only from the published view, so
+ * drawing never has to wait for a move or look at the world while it's changing.
+*/
+public class View {
+	/** The size of the view in tiles. */
+	public final int width, height;
+	/** The map coordinates of the top left tile. */
+	public final int left, top;
+	/** The types of the tiles on screen, by layer, as y * width + x, NOTHING off the map. */
+	public final int[][] types;
+	/** How much the tiles on screen are lit, as y * width + x. */
+	public final double[] light;
+	/** The text and colour of the status bar. */
+	public final String status;
+	public final Color statusColor;
+	/** The colours and names of the types, as they were when the view was made. */
+	public final Color[] typeColors;
+	public final String[] typeNames;
+
+	/** Makes a view out of the given parts, as sent by a server. */
+	public View(int width, int height, int left, int top, int[][] types, double[] light,
+			String status, Color statusColor, Color[] typeColors, String[] typeNames)
+	{
+		this.width = width;
+		this.height = height;
+		this.left = left;
+		this.top = top;
+		this.types = types;
+		this.light = light;
+		this.status = status;
+		this.statusColor = statusColor;
+		this.typeColors = typeColors;
+		this.typeNames = typeNames;
+	}
+
+	/** Makes a view of the given game centred on the player. Call this on the simulation thread. */
+	public View(Minigame g, int width, int height) {
+		this.width = width;
+		this.height = height;
+		left = g.playerX - width / 2;
+		top = g.playerY - height / 2;
+		types = new int[Minigame.MAP_LAYERS][width * height];
+		light = new double[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int mapX = left + x;
+				int mapY = top + y;
+				if (!g.world.contains(mapY, mapX)) { continue; }
+				for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+					types[z][y * width + x] = g.world.type(z, mapY, mapX);
+				}
+				light[y * width + x] = g.world.lit(mapY, mapX);
+			}
+		}
+		typeColors = g.typeColors;
+		typeNames = g.verboseTypeNames;
+		status = g.status();
+		statusColor = g.statusColor();
+	}
+}
@@ -0,0 +1,865 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The map, stored as a grid of chunks. Chunks are only created once something in them changes,
+ * so untouched parts of the world cost nothing, unless the rules have the type a layer is filled
+ * with do something, in which case all the chunks are created up front. Chunks that are far
+ * from the player and haven't changed in a while are paged out to disk, and paged back in when
+ * something looks at them, so only the chunks in use count against the heap.
+ * Tiles are addressed by layer, y and x, like the old map array, and all access goes through
+ * the accessor methods.
+ * The light falling on each tile is kept up to date as light sources appear and disappear, so
+ * only the area around a light source that changed is recalculated. Light only falls on chunks
+ * that are in memory.
+ * Tiles in different chunks can be changed from different threads at once, as long as the chunks
+ * are in memory: changing a tile only touches its own chunk, and the light is caught up with
+ * afterwards by updateLights().
+ * copy() makes a copy of the world that other threads can read, such as the one saves are written
+ * from, with chunks copied only once they change.
+ * Items that only do something at certain ages aren't active. Instead, the world keeps a timer
+ * for each of them in a TimerWheel, and prepareTick() makes them active for the turns they're
+ * due in, paging their chunks in if needed, so they cost nothing in between.
+ * The world also keeps track of which tiles changed type, and where the light changed, until
+ * clearViewChanges() is called, so a Server only looks at those to tell its players what they
+ * see change.
+*/
+public class World {
+	/** How many chunks away from the player a chunk has to be before it can be paged out. */
+	public static final int PAGE_OUT_DISTANCE = 4;
+	/** How many turns a chunk has to go without changing before it can be paged out. */
+	public static final int PAGE_OUT_IDLE_TURNS = 100;
+	/** The amount of light that fully lights a tile, in the units lights are summed up in. */
+	public static final int LIGHT_SCALE = 1 << 16;
+
+	/** The size of the world in tiles. */
+	public final int width, height;
+	/** The size of the world in chunks. */
+	public final int chunksX, chunksY;
+	/** The type of each layer's tiles in chunks that have never been created. */
+	protected final int[] defaultTypes;
+	/** The resident chunks, indexed as cy * chunksX + cx, or null. */
+	protected final Chunk[] chunks;
+	/** The resident chunks' indices. */
+	protected final TileSet residentChunks;
+	/** The indices of the chunks that are paged out to disk. */
+	protected final BitSet pagedOut = new BitSet();
+	/**
+	 * The indices of the chunks that were paged out while they had changes that weren't saved, or
+	 * that were put in from elsewhere, so the next save has to include all of their tiles.
+	*/
+	protected final BitSet unsavedChunks = new BitSet();
+	/** The rules the types below come from. */
+	protected CompiledRules rules;
+	/** Which types can do something by themselves every turn. */
+	protected boolean[] activeTypes;
+	/** Which types only do something at certain ages. */
+	protected boolean[] timedTypes;
+	/** Which types' tiles are indexed in each chunk. */
+	protected boolean[] indexedTypes;
+	/** How much light each type gives off. */
+	protected int[] typeLight;
+	/** How many chunks away the light from a light source can reach. */
+	protected int lightReach;
+	/** The current turn, used to keep track of when chunks last changed and work out ages. */
+	protected int turn;
+	/**
+	 * When the timed items are next due, keyed by timerKey(). Timers of items that changed since
+	 * are left in, and found out when they go off.
+	*/
+	protected final TimerWheel timers = new TimerWheel();
+	/** The keys of the tiles made active by prepareTick() for this turn only. */
+	protected long[] woken = new long[16];
+	protected int wokenCount;
+	/** How much tiles are lit in the absence of light sources. */
+	protected double baseLight = 1;
+	/** Whether baseLight changed since clearViewChanges() last ran. */
+	protected boolean baseLightChanged;
+	/**
+	 * The indices of the chunks that were put into memory or paged out since clearViewChanges()
+	 * last ran, any of whose tiles may look different.
+	*/
+	protected final BitSet viewChangedChunks = new BitSet();
+	/**
+	 * How many times the light of a light source has been added to or taken off the map, for
+	 * TickStats.
+	*/
+	protected long lightSplats;
+	/** The folder chunks are paged out to, created when first needed. */
+	protected File pageFolder;
+	/** The file each paged out chunk is in, by chunk index. */
+	protected final File[] pageFiles;
+	/** The hash of each paged out chunk's tiles as by Chunk.hash(), by chunk index. */
+	protected final long[] pageHashes;
+	/** The hash of the tiles of a chunk that has never been created. */
+	protected final long defaultHash;
+	/** How many chunks have been paged out, which numbers the page files. */
+	protected int pageOuts;
+	/** How many copies made by copy() haven't been released yet. */
+	protected final AtomicInteger copies = new AtomicInteger();
+	/** Page files no longer in use that copies may still read from. */
+	protected final ArrayList<File> oldPageFiles = new ArrayList<File>();
+
+	/**
+	 * Creates a world of the given size, with each layer filled with the given default type.
+	 * @param rules The rules that say which types are active, timed and indexed.
+	 * @param typeLight How much light each type gives off.
+	*/
+	public World(int width, int height, int[] defaultTypes, CompiledRules rules,
+			int[] typeLight)
+	{
+		this.width = width;
+		this.height = height;
+		this.defaultTypes = defaultTypes;
+		this.rules = rules;
+		activeTypes = rules.active;
+		timedTypes = rules.timed;
+		indexedTypes = rules.indexed;
+		chunksX = (width + Chunk.MASK) >> Chunk.SHIFT;
+		chunksY = (height + Chunk.MASK) >> Chunk.SHIFT;
+		chunks = new Chunk[chunksX * chunksY];
+		pageFiles = new File[chunks.length];
+		pageHashes = new long[chunks.length];
+		defaultHash = new Chunk(0, 0, defaultTypes).hash();
+		residentChunks = new TileSet(chunks.length);
+		setTypeLight(typeLight);
+		createDefaultChunks();
+	}
+
+	// Tile access
+	/** @return Whether the given coordinates are within the world. */
+	public boolean contains(int y, int x) {
+		return x > -1 && x < width && y > -1 && y < height;
+	}
+
+	/** @return The index of the chunk the given tile is in. */
+	public int chunkIndex(int y, int x) {
+		return (y >> Chunk.SHIFT) * chunksX + (x >> Chunk.SHIFT);
+	}
+
+	/** @return The index of the given tile within its chunk. */
+	public static int tileIndex(int y, int x) {
+		return ((y & Chunk.MASK) << Chunk.SHIFT) | (x & Chunk.MASK);
+	}
+
+	/** @return The given location packed into a long, which orders locations row by row. */
+	public static long pack(int y, int x) {
+		return ((long) y << 32) | x;
+	}
+
+	/** @return The x coordinate of a location packed by pack(). */
+	public static int x(long location) {
+		return (int) location;
+	}
+
+	/** @return The y coordinate of a location packed by pack(). */
+	public static int y(long location) {
+		return (int) (location >> 32);
+	}
+
+	/** @return The type on the given tile. */
+	public int type(int z, int y, int x) {
+		Chunk c = chunk(chunkIndex(y, x));
+		return c == null ? defaultTypes[z] : c.type(z, tileIndex(y, x));
+	}
+
+	/**
+	 * Sets the type of the given tile, keeping track of whether it is active. If the tile's light
+	 * changes, the light around it is updated by the next call to updateLights().
+	*/
+	public void setType(int z, int y, int x, int type) {
+		int index = chunkIndex(y, x);
+		Chunk c = createChunk(index);
+		int tile = tileIndex(y, x);
+		if (c.shared[z]) {
+			c.unshare(z);
+		}
+		int oldType = c.type(z, tile);
+		if (indexedTypes[oldType]) {
+			c.removeTypeTile(z, oldType, tile);
+		}
+		if (indexedTypes[type]) {
+			c.addTypeTile(z, type, tile);
+		}
+		if (typeLight[oldType] != typeLight[type]) {
+			c.lightChanges[z].add(tile);
+		}
+		c.setType(z, tile, type);
+		c.unsaved[z].add(tile);
+		c.viewChanges[z].add(tile);
+		c.lastChanged = turn;
+		if (activeTypes[type]) {
+			c.active[z].add(tile);
+		} else {
+			c.active[z].remove(tile);
+		}
+		if (timedTypes[type]) {
+			c.timerChanges[z].add(tile);
+		}
+	}
+
+	/** @return The age of the given tile, which is how many turns ago its item was born. */
+	public int age(int z, int y, int x) {
+		Chunk c = chunk(chunkIndex(y, x));
+		return turn - (c == null ? 0 : c.born(z, tileIndex(y, x)));
+	}
+
+	public void setAge(int z, int y, int x, int age) {
+		Chunk c = createChunk(chunkIndex(y, x));
+		int tile = tileIndex(y, x);
+		if (c.born(z, tile) != turn - age) {
+			if (c.shared[z]) {
+				c.unshare(z);
+			}
+			c.setBorn(z, tile, turn - age);
+			c.unsaved[z].add(tile);
+			if (timedTypes[c.type(z, tile)]) {
+				c.timerChanges[z].add(tile);
+			}
+		}
+	}
+
+	/** @return The turn in which the given tile was last visited by the map tick. */
+	public int tickedOn(int z, int y, int x) {
+		Chunk c = chunk(chunkIndex(y, x));
+		return c == null ? 0 : c.tickedOn[z][tileIndex(y, x)];
+	}
+
+	public void setTickedOn(int z, int y, int x, int turn) {
+		createChunk(chunkIndex(y, x)).tickedOn[z][tileIndex(y, x)] = turn;
+	}
+
+	/** @return How much the given tile is lit. Chunks that are paged out are only lit by day. */
+	public double lit(int y, int x) {
+		Chunk c = chunks[chunkIndex(y, x)];
+		if (c == null) { return baseLight; }
+		double lit = baseLight + c.light[tileIndex(y, x)] / (double) LIGHT_SCALE;
+		return Math.max(0, Math.min(1, lit));
+	}
+
+	/** Sets how much tiles are lit in the absence of light sources. */
+	public void setBaseLight(double baseLight) {
+		baseLightChanged |= baseLight != this.baseLight;
+		this.baseLight = baseLight;
+	}
+
+	/**
+	 * Adds light from a source that isn't on the map, such as the item the player carries, or
+	 * takes it away again if sign is -1.
+	*/
+	public void addLight(int y, int x, int light, int sign) {
+		createChunksAround(y, x, light);
+		splatLight(y, x, light, sign, -1);
+	}
+
+	/**
+	 * Updates the light around the tiles whose light changed since this was last called. New
+	 * chunks the light falls on are created first, and pick up the light already there.
+	*/
+	public void updateLights() {
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			Chunk c = chunks[i];
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				TileSet changes = c.lightChanges[z];
+				if (changes.size() == 0) { continue; }
+				for (int tile = changes.next(0); tile != -1; tile = changes.next(tile + 1)) {
+					int light = typeLight[c.type(z, tile)];
+					int oldLight = c.lightOf[z][tile];
+					if (light == oldLight) { continue; }
+					int y = (c.cy << Chunk.SHIFT) + (tile >> Chunk.SHIFT);
+					int x = (c.cx << Chunk.SHIFT) + (tile & Chunk.MASK);
+					createChunksAround(y, x, light);
+					if (oldLight != 0) {
+						splatLight(y, x, oldLight, -1, -1);
+						c.lights[z].remove(tile);
+					}
+					c.lightOf[z][tile] = light;
+					if (light != 0) {
+						splatLight(y, x, light, 1, -1);
+						c.lights[z].add(tile);
+					}
+				}
+				c.lightChanges[z] = new TileSet(Chunk.AREA);
+			}
+		}
+	}
+
+	/** Sets how much light each type gives off, and lights up the world again from scratch. */
+	public void setTypeLight(int[] typeLight) {
+		this.typeLight = typeLight;
+		int maxLight = 0;
+		for (int light : typeLight) {
+			maxLight = Math.max(maxLight, Math.abs(light));
+		}
+		lightReach = (maxLight + Chunk.MASK) >> Chunk.SHIFT;
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			Arrays.fill(chunks[i].light, 0);
+			chunks[i].lightChanged = true;
+			chunks[i].findLights(typeLight);
+		}
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			splatChunkLights(chunks[i], 1, -1);
+		}
+	}
+
+	/**
+	 * Adds the light from a light source at the given location to the tiles around it, or takes
+	 * it away again if sign is -1. The light that falls on a tile is the same when it's added as
+	 * when it's taken away, so the sums don't drift.
+	 * @param onlyChunk The index of the only chunk to light, or -1 for all chunks in memory.
+	*/
+	protected void splatLight(int y, int x, int light, int sign, int onlyChunk) {
+		lightSplats++;
+		double intensity = light / 6.0;
+		int radius = Math.abs(light);
+		int startX = Math.max(0, x - radius);
+		int endX = Math.min(width, x + radius + 1);
+		int startY = Math.max(0, y - radius);
+		int endY = Math.min(height, y + radius + 1);
+		if (onlyChunk != -1) {
+			int cx = onlyChunk % chunksX;
+			int cy = onlyChunk / chunksX;
+			startX = Math.max(startX, cx << Chunk.SHIFT);
+			endX = Math.min(endX, (cx + 1) << Chunk.SHIFT);
+			startY = Math.max(startY, cy << Chunk.SHIFT);
+			endY = Math.min(endY, (cy + 1) << Chunk.SHIFT);
+		}
+		for (int yy = startY; yy < endY; yy++) { for (int xx = startX; xx < endX; xx++) {
+			Chunk c = chunks[chunkIndex(yy, xx)];
+			if (c == null) { continue; }
+			c.light[tileIndex(yy, xx)] += sign * (int) Math.round(intensity * LIGHT_SCALE /
+					((x - xx) * (x - xx) + (y - yy) * (y - yy) + 1));
+			c.lightChanged = true;
+		} } // End inner y/x loop
+	}
+
+	/** Adds or takes away the light from all the light sources in the given chunk. */
+	protected void splatChunkLights(Chunk c, int sign, int onlyChunk) {
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			TileSet lights = c.lights[z];
+			for (int tile = lights.next(0); tile != -1; tile = lights.next(tile + 1)) {
+				splatLight((c.cy << Chunk.SHIFT) + (tile >> Chunk.SHIFT),
+						(c.cx << Chunk.SHIFT) + (tile & Chunk.MASK),
+						c.lightOf[z][tile], sign, onlyChunk);
+			}
+		}
+	}
+
+	/**
+	 * Creates the chunks a light at the given location would fall on that have never been
+	 * created, so no light is lost.
+	*/
+	protected void createChunksAround(int y, int x, int light) {
+		int radius = Math.abs(light);
+		int startCX = Math.max(0, x - radius) >> Chunk.SHIFT;
+		int endCX = Math.min(width - 1, x + radius) >> Chunk.SHIFT;
+		int startCY = Math.max(0, y - radius) >> Chunk.SHIFT;
+		int endCY = Math.min(height - 1, y + radius) >> Chunk.SHIFT;
+		for (int cy = startCY; cy <= endCY; cy++) { for (int cx = startCX; cx <= endCX; cx++) {
+			int index = cy * chunksX + cx;
+			if (chunks[index] == null && !pagedOut.get(index)) {
+				createChunk(index);
+			}
+		} } // End chunk y/x loop
+	}
+
+	/** Sets which types can do something by themselves, and works out the active tiles again. */
+	public void findActiveTiles(boolean[] activeTypes) {
+		this.activeTypes = activeTypes;
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			chunks[i].findActiveTiles(activeTypes);
+		}
+	}
+
+	/**
+	 * Changes which types can do something by themselves, which types' tiles are indexed and how
+	 * much light each type gives off, for when the rules change while the game runs. Only the
+	 * tiles of the types whose rules changed are looked at again, and the light is only worked
+	 * out again around the ones whose light changed. Chunks that are paged out pick up the new
+	 * rules when they're paged back in.
+	*/
+	public void setTypeRules(CompiledRules rules, int[] typeLight) {
+		boolean[] activeTypes = rules.active;
+		boolean[] timedTypes = rules.timed;
+		boolean[] indexedTypes = rules.indexed;
+		int types = Math.max(activeTypes.length, this.activeTypes.length);
+		boolean[] changed = new boolean[types];
+		boolean anyChanged = false;
+		for (int t = 0; t < types; t++) {
+			// Timers are set again for all the timed types, as when they're due may have changed.
+			changed[t] = get(activeTypes, t) != get(this.activeTypes, t) ||
+					get(timedTypes, t) || get(this.timedTypes, t) ||
+					get(indexedTypes, t) != get(this.indexedTypes, t) ||
+					get(typeLight, t) != get(this.typeLight, t);
+			anyChanged |= changed[t];
+		}
+		boolean[] wasIndexed = this.indexedTypes;
+		this.rules = rules;
+		this.activeTypes = activeTypes;
+		this.timedTypes = timedTypes;
+		this.indexedTypes = indexedTypes;
+		this.typeLight = typeLight;
+		int maxLight = 0;
+		for (int light : typeLight) {
+			maxLight = Math.max(maxLight, Math.abs(light));
+		}
+		lightReach = (maxLight + Chunk.MASK) >> Chunk.SHIFT;
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			Chunk c = chunks[i];
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				if (c.typeTiles[z].length < indexedTypes.length) {
+					c.typeTiles[z] = Arrays.copyOf(c.typeTiles[z], indexedTypes.length);
+				}
+				if (!anyChanged) { continue; }
+				for (int t = 0; t < c.typeTiles[z].length; t++) {
+					if (!get(indexedTypes, t)) {
+						c.typeTiles[z][t] = null;
+					}
+				}
+				for (int tile = 0; tile < Chunk.AREA; tile++) {
+					int type = c.type(z, tile);
+					if (!changed[type]) { continue; }
+					if (indexedTypes[type] && !get(wasIndexed, type)) {
+						c.addTypeTile(z, type, tile);
+					}
+					if (activeTypes[type]) {
+						c.active[z].add(tile);
+					} else {
+						c.active[z].remove(tile);
+					}
+					if (timedTypes[type]) {
+						c.timerChanges[z].add(tile);
+					}
+					if (typeLight[type] != c.lightOf[z][tile]) {
+						c.lightChanges[z].add(tile);
+					}
+				}
+			}
+		}
+		updateLights();
+		createDefaultChunks();
+	}
+
+	protected static boolean get(boolean[] array, int i) {
+		return i < array.length && array[i];
+	}
+
+	protected static int get(int[] array, int i) {
+		return i < array.length ? array[i] : 0;
+	}
+
+	// Chunks
+	/**
+	 * @return The chunk with the given index, paging it in if needed, or null if it has never
+	 * been created.
+	*/
+	public Chunk chunk(int index) {
+		Chunk c = chunks[index];
+		if (c == null && pagedOut.get(index)) {
+			c = pageIn(index);
+		}
+		return c;
+	}
+
+	/** @return The chunk with the given index, creating it if needed. */
+	protected Chunk createChunk(int index) {
+		Chunk c = chunk(index);
+		if (c == null) {
+			c = new Chunk(index % chunksX, index / chunksX, defaultTypes);
+			makeResident(index, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Creates all the chunks that have never been created if the type a layer is filled with by
+	 * default can do something by itself, or at certain ages, since the tiles of chunks that have
+	 * never been created are never ticked.
+	*/
+	protected void createDefaultChunks() {
+		boolean defaultsAct = false;
+		for (int type : defaultTypes) {
+			defaultsAct |= activeTypes[type] || timedTypes[type];
+		}
+		if (!defaultsAct) { return; }
+		for (int i = 0; i < chunks.length; i++) {
+			if (chunks[i] == null && !pagedOut.get(i)) {
+				createChunk(i);
+			}
+		}
+	}
+
+	/** Puts the given chunk into memory, and lights it and its neighbours up. */
+	protected void makeResident(int index, Chunk c) {
+		c.findActiveTiles(activeTypes);
+		c.findTimedTiles(timedTypes);
+		c.findTypeTiles(indexedTypes);
+		c.findLights(typeLight);
+		c.lastChanged = turn;
+		chunks[index] = c;
+		residentChunks.add(index);
+		viewChangedChunks.set(index);
+		// The chunk's light sources light up their surroundings, and the light sources in the
+		// chunks around it light it up.
+		splatChunkLights(c, 1, -1);
+		for (int cy = Math.max(0, c.cy - lightReach);
+			cy <= Math.min(chunksY - 1, c.cy + lightReach); cy++)
+		{
+			for (int cx = Math.max(0, c.cx - lightReach);
+				cx <= Math.min(chunksX - 1, c.cx + lightReach); cx++)
+			{
+				Chunk neighbour = chunks[cy * chunksX + cx];
+				if (neighbour != null && neighbour != c) {
+					splatChunkLights(neighbour, 1, index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts the given chunk, read in from a save, into the world in place of the one with its
+	 * position. The whole chunk counts as changed until the game is saved.
+	*/
+	public void putChunk(Chunk c) {
+		int index = c.cy * chunksX + c.cx;
+		if (chunks[index] != null) {
+			splatChunkLights(chunks[index], -1, -1);
+			residentChunks.remove(index);
+		}
+		if (pagedOut.get(index)) {
+			pagedOut.clear(index);
+			dropPageFile(index);
+		}
+		unsavedChunks.set(index);
+		makeResident(index, c);
+	}
+
+	/**
+	 * @return The indices of the chunks that were paged out with changes that weren't saved or
+	 * were put in from elsewhere, all of whose tiles need saving.
+	*/
+	public BitSet unsavedChunks() {
+		return unsavedChunks;
+	}
+
+	/**
+	 * @return A copy of the world as it is now, which can be read from another thread while the
+	 * world goes on changing. Chunks share their types and ages with the copy until they change,
+	 * so making a copy costs little. The copy has to be released once it's no longer needed.
+	 * @param takeChanges Whether the copy takes over which tiles changed since the game was last
+	 * saved, for saving them, after which the world starts keeping track again.
+	*/
+	public WorldCopy copy(boolean takeChanges) {
+		copies.incrementAndGet();
+		Chunk[] chunkCopies = new Chunk[chunks.length];
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			chunkCopies[i] = chunks[i].copy();
+		}
+		WorldCopy copy = new WorldCopy(this, chunkCopies, pageFiles.clone(),
+				(BitSet) unsavedChunks.clone());
+		if (takeChanges) {
+			for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+				for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+					chunks[i].unsaved[z] = new TileSet(Chunk.AREA);
+				}
+			}
+			unsavedChunks.clear();
+		}
+		return copy;
+	}
+
+	/** Forgets which tiles changed, once the game has been saved. */
+	public void markSaved() {
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				if (chunks[i].unsaved[z].size() != 0) {
+					chunks[i].unsaved[z] = new TileSet(Chunk.AREA);
+				}
+			}
+		}
+		unsavedChunks.clear();
+	}
+
+	/**
+	 * Forgets which tiles changed type, where the light changed and which chunks came and went,
+	 * once a Server has told its players.
+	*/
+	public void clearViewChanges() {
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			Chunk c = chunks[i];
+			for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+				if (c.viewChanges[z].size() != 0) {
+					c.viewChanges[z] = new TileSet(Chunk.AREA);
+				}
+			}
+			c.lightChanged = false;
+		}
+		viewChangedChunks.clear();
+		baseLightChanged = false;
+	}
+
+	/** @return The indices of the chunks that are in memory. */
+	public TileSet residentChunks() {
+		return residentChunks;
+	}
+
+	/** @return Whether the chunk with the given index is in memory. */
+	public boolean isResident(int index) {
+		return chunks[index] != null;
+	}
+
+	/**
+	 * Makes the timed items that are due in this turn active for this turn, and pages in the
+	 * chunks next to chunks with active tiles, since the tick may look at them. After this, the
+	 * tick can run without changing which chunks are in memory.
+	*/
+	public void prepareTick() {
+		sleepWokenTiles();
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			updateTimers(chunks[i], turn);
+		}
+		wakeDueTiles();
+		boolean pagedIn = true;
+		while (pagedIn) {
+			pagedIn = false;
+			for (int i = pagedOut.nextSetBit(0); i != -1; i = pagedOut.nextSetBit(i + 1)) {
+				if (hasActiveNeighbour(i % chunksX, i / chunksX)) {
+					pageIn(i);
+					pagedIn = true;
+				}
+			}
+		}
+	}
+
+	// Timers
+	/** @return The key of the given tile's timer. */
+	protected static long timerKey(int index, int z, int tile) {
+		return ((long) index * Minigame.MAP_LAYERS + z) * Chunk.AREA + tile;
+	}
+
+	/**
+	 * Sets timers for the timed items in the given chunk whose type or age changed, for the first
+	 * turn they're due in from the given turn on.
+	*/
+	protected void updateTimers(Chunk c, int fromTurn) {
+		int index = c.cy * chunksX + c.cx;
+		for (int z = 0; z < Minigame.MAP_LAYERS; z++) {
+			TileSet changes = c.timerChanges[z];
+			if (changes.size() == 0) { continue; }
+			for (int tile = changes.next(0); tile != -1; tile = changes.next(tile + 1)) {
+				int type = c.type(z, tile);
+				if (!timedTypes[type]) { continue; }
+				int wait = rules.turnsUntilDue(type, fromTurn - c.born(z, tile));
+				if (wait != -1) {
+					timers.add(fromTurn + wait, timerKey(index, z, tile));
+				}
+			}
+			c.timerChanges[z] = new TileSet(Chunk.AREA);
+		}
+	}
+
+	/**
+	 * Makes the timed items whose timers go off in this turn active, paging in their chunks if
+	 * needed. Timers of items that changed since they were set are left out, unless the items
+	 * happen to be due anyway.
+	*/
+	protected void wakeDueTiles() {
+		for (long key : timers.take(turn)) {
+			int tile = (int) (key % Chunk.AREA);
+			int z = (int) (key / Chunk.AREA % Minigame.MAP_LAYERS);
+			int index = (int) (key / Chunk.AREA / Minigame.MAP_LAYERS);
+			Chunk c = chunk(index);
+			if (c == null || c.active[z].contains(tile)) { continue; }
+			int type = c.type(z, tile);
+			if (!timedTypes[type] || rules.turnsUntilDue(type, turn - c.born(z, tile)) != 0) {
+				continue;
+			}
+			c.active[z].add(tile);
+			if (wokenCount == woken.length) {
+				woken = Arrays.copyOf(woken, wokenCount * 2);
+			}
+			woken[wokenCount++] = key;
+		}
+	}
+
+	/**
+	 * Makes the tiles made active for the last turn inactive again, unless their items have become
+	 * active since, and has their timers set for when they're next due.
+	*/
+	protected void sleepWokenTiles() {
+		for (int i = 0; i < wokenCount; i++) {
+			int tile = (int) (woken[i] % Chunk.AREA);
+			int z = (int) (woken[i] / Chunk.AREA % Minigame.MAP_LAYERS);
+			Chunk c = chunks[(int) (woken[i] / Chunk.AREA / Minigame.MAP_LAYERS)];
+			if (c == null) { continue; }
+			int type = c.type(z, tile);
+			if (!activeTypes[type]) {
+				c.active[z].remove(tile);
+			}
+			if (timedTypes[type]) {
+				c.timerChanges[z].add(tile);
+			}
+		}
+		wokenCount = 0;
+	}
+
+	/** @return Whether the given chunk or any of the chunks next to it has active tiles. */
+	protected boolean hasActiveNeighbour(int chunkX, int chunkY) {
+		for (int cy = Math.max(0, chunkY - 1); cy <= Math.min(chunksY - 1, chunkY + 1); cy++) {
+			for (int cx = Math.max(0, chunkX - 1); cx <= Math.min(chunksX - 1, chunkX + 1); cx++) {
+				Chunk c = chunks[cy * chunksX + cx];
+				if (c != null && c.isActive()) { return true; }
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The chunk with the given index without making it resident if it's paged out, or null
+	 * if it has never been created.
+	*/
+	public Chunk peekChunk(int index) {
+		if (chunks[index] != null || !pagedOut.get(index)) {
+			return chunks[index];
+		}
+		return readChunk(index);
+	}
+
+	/**
+	 * @return A hash of the types and ages of all the tiles, whether their chunks are in memory,
+	 * paged out or were never created, for telling whether two worlds are the same. It's made out
+	 * of the chunks' own hashes, which are kept for paged out chunks, so only chunks that changed
+	 * since the last time are looked at, and none are read back in from disk.
+	*/
+	public long hash() {
+		long hash = width * 31L + height;
+		hash = hash * 31 + turn;
+		for (int i = 0; i < chunks.length; i++) {
+			long chunkHash;
+			if (chunks[i] != null) {
+				chunkHash = chunks[i].hash();
+			} else if (pagedOut.get(i)) {
+				chunkHash = pageHashes[i];
+			} else {
+				chunkHash = defaultHash;
+			}
+			hash = hash * 31 + chunkHash;
+		}
+		return SimRandom.mix(hash);
+	}
+
+	// Paging
+	/**
+	 * Pages out the chunks that are far from the given location and idle, unless something next
+	 * to them is active.
+	*/
+	public void pageOutIdleChunks(int playerY, int playerX) {
+		pageOutIdleChunks(new int[] { playerY }, new int[] { playerX });
+	}
+
+	/**
+	 * Pages out the chunks that are far from all the given locations and idle, unless something
+	 * next to them is active.
+	*/
+	public void pageOutIdleChunks(int[] playerYs, int[] playerXs) {
+		for (int i = residentChunks.next(0); i != -1; i = residentChunks.next(i + 1)) {
+			Chunk c = chunks[i];
+			int distance = Integer.MAX_VALUE;
+			for (int p = 0; p < playerYs.length; p++) {
+				int playerCX = playerXs[p] >> Chunk.SHIFT;
+				int playerCY = playerYs[p] >> Chunk.SHIFT;
+				distance = Math.min(distance,
+						Math.max(Math.abs(c.cx - playerCX), Math.abs(c.cy - playerCY)));
+			}
+			if (distance > PAGE_OUT_DISTANCE && turn - c.lastChanged >= PAGE_OUT_IDLE_TURNS &&
+				!hasActiveNeighbour(c.cx, c.cy))
+			{
+				pageOut(i);
+			}
+		}
+	}
+
+	/**
+	 * @return A new file to page out the chunk with the given index to. Each page out gets its own
+	 * file, so copies of the world can go on reading the old one.
+	*/
+	protected File newPageFile(int index) throws Exception {
+		if (pageFolder == null) {
+			pageFolder = Files.createTempDirectory("soapquest-chunks").toFile();
+			pageFolder.deleteOnExit();
+		}
+		return new File(pageFolder, index + "-" + (pageOuts++) + ".chunk");
+	}
+
+	/**
+	 * Deletes the page file of the chunk with the given index once it's been paged in, or keeps
+	 * it until no copies of the world are left that may read it.
+	*/
+	protected void dropPageFile(int index) {
+		oldPageFiles.add(pageFiles[index]);
+		pageFiles[index] = null;
+		if (copies.get() == 0) {
+			for (File f : oldPageFiles) {
+				f.delete();
+			}
+			oldPageFiles.clear();
+		}
+	}
+
+	protected void pageOut(int index) {
+		// Timers stay set while the chunk is paged out, and page it back in when they go off.
+		updateTimers(chunks[index], turn + 1);
+		try {
+			File f = newPageFile(index);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(f)));
+			chunks[index].write(out);
+			out.close();
+			f.deleteOnExit();
+			pageFiles[index] = f;
+			pageHashes[index] = chunks[index].hash();
+			if (chunks[index].unsavedTiles() != 0) {
+				unsavedChunks.set(index);
+			}
+			// Take the chunk's light away from the chunks that stay in memory.
+			splatChunkLights(chunks[index], -1, -1);
+			chunks[index] = null;
+			residentChunks.remove(index);
+			pagedOut.set(index);
+			viewChangedChunks.set(index);
+		} catch (Exception e) {
+			// Keep the chunk in memory then.
+			e.printStackTrace();
+		}
+	}
+
+	protected Chunk pageIn(int index) {
+		Chunk c = readChunk(index);
+		pagedOut.clear(index);
+		dropPageFile(index);
+		makeResident(index, c);
+		return c;
+	}
+
+	/** @return The paged out chunk with the given index, read back in from disk. */
+	protected Chunk readChunk(int index) {
+		try {
+			return Chunk.read(pageFiles[index], index % chunksX, index / chunksX, defaultTypes);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return new Chunk(index % chunksX, index / chunksX, defaultTypes);
+		}
+	}
+
+	/** Sets the current turn, used to keep track of when chunks last changed. */
+	public void setTurn(int turn) {
+		this.turn = turn;
+	}
+}
@@ -0,0 +1,60 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * A copy of the world as it was when World.copy() was called, which can be read from another
+ * thread, for example to save it, while the world goes on changing. Resident chunks are copied
+ * as copy-on-write copies, and paged out chunks are read from the page files they were in at the
+ * time, which the world keeps until the copy is released.
+*/
+public class WorldCopy {
+	protected final World world;
+	/** The size of the world in tiles. */
+	public final int width, height;
+	/** The size of the world in chunks. */
+	public final int chunksX, chunksY;
+	/** The type of each layer's tiles in chunks that were never created. */
+	public final int[] defaultTypes;
+	/** The copies of the chunks that were in memory, by chunk index, or null. */
+	protected final Chunk[] chunks;
+	/** The files the chunks that were paged out were in, by chunk index, or null. */
+	protected final File[] pageFiles;
+	/**
+	 * The indices of the chunks all of whose tiles need saving, if the copy took over the changes
+	 * since the last save.
+	*/
+	protected final BitSet unsavedChunks;
+	protected boolean released;
+
+	public WorldCopy(World world, Chunk[] chunks, File[] pageFiles, BitSet unsavedChunks) {
+		this.world = world;
+		width = world.width;
+		height = world.height;
+		chunksX = world.chunksX;
+		chunksY = world.chunksY;
+		defaultTypes = world.defaultTypes;
+		this.chunks = chunks;
+		this.pageFiles = pageFiles;
+		this.unsavedChunks = unsavedChunks;
+	}
+
+	/**
+	 * @return The copy of the chunk with the given index, read in from its page file if it was
+	 * paged out, or null if it was never created.
+	*/
+	public Chunk chunk(int index) throws IOException {
+		if (chunks[index] != null || pageFiles[index] == null) {
+			return chunks[index];
+		}
+		return Chunk.read(pageFiles[index], index % chunksX, index / chunksX, defaultTypes);
+	}
+
+	/** Lets the world delete the page files the copy reads from. Call this once it's done with. */
+	public void release() {
+		if (!released) {
+			released = true;
+			world.copies.decrementAndGet();
+		}
+	}
+}